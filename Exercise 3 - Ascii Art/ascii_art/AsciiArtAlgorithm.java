@@ -1,8 +1,11 @@
 package ascii_art;
 
+import ascii_output.StreamingAsciiOutput;
 import image.ImageProcessing;
 import image_char_matching.SubImgCharMatcher;
 
+import java.util.Arrays;
+
 /**
  * Responsible for running the algorithm.
  *
@@ -10,9 +13,21 @@ import image_char_matching.SubImgCharMatcher;
  */
 public class AsciiArtAlgorithm {
 
+    // The Floyd-Steinberg weights of the error passed to the neighbours of a sub-image.
+    private static final double RIGHT_WEIGHT = 7.0 / 16;
+    private static final double BELOW_LEFT_WEIGHT = 3.0 / 16;
+    private static final double BELOW_WEIGHT = 5.0 / 16;
+    private static final double BELOW_RIGHT_WEIGHT = 1.0 / 16;
+    // The 4x4 Bayer matrix of the ordered dither thresholds.
+    private static final int[][] BAYER_MATRIX = {{0, 8, 2, 10}, {12, 4, 14, 6}, {3, 11, 1, 9}, {15, 7, 13, 5}};
+    private static final int BAYER_SIZE = 4;
+    private static final double BAYER_LEVELS = BAYER_SIZE * BAYER_SIZE;
+    private static final double HALF = 0.5;
+
     private final ImageProcessing image;
     private final int resolution;
     private final SubImgCharMatcher subImgCharMatcher;
+    private final DitherMode ditherMode;
 
     /**
      * Constructor.
@@ -22,9 +37,23 @@ public class AsciiArtAlgorithm {
      * @param subImgCharMatcher An Instance holds the character set inside.
      */
     public AsciiArtAlgorithm(ImageProcessing image, int resolution, SubImgCharMatcher subImgCharMatcher) {
+        this(image, resolution, subImgCharMatcher, DitherMode.NONE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param image The processed image we will use in the algorithm.
+     * @param resolution The resolution of the output.
+     * @param subImgCharMatcher An Instance holds the character set inside.
+     * @param ditherMode The dithering of the brightness of the sub-images before they are matched.
+     */
+    public AsciiArtAlgorithm(ImageProcessing image, int resolution, SubImgCharMatcher subImgCharMatcher,
+                             DitherMode ditherMode) {
         this.subImgCharMatcher = subImgCharMatcher;
         this.resolution = resolution;
         this.image = image;
+        this.ditherMode = ditherMode;
     }
 
     /**
@@ -34,19 +63,120 @@ public class AsciiArtAlgorithm {
      */
     public char[][] run() {
         double[] brightnessArray = image.getSubImagesBrightnessArray(resolution);
-        int outputHeight = image.getHeight() / (image.getWidth() / resolution);
+        long[] shapeArray = getShapeArray();
+        int outputHeight = brightnessArray.length / resolution;
         int outputWidth = resolution;
         char[][] output = new char[outputHeight][outputWidth];
-        int row = 0, col = 0;
-        for (int i = 0; i < brightnessArray.length; i++) {
-            if (col == outputWidth) {
-                col = 0;
-                row++;
-            }
-            // Matching ASCII character to each sub-image.
-            output[row][col] = subImgCharMatcher.getCharByImageBrightness(brightnessArray[i]);
-            col++;
+        double[][] errorRows = newErrorRows();
+        for (int row = 0; row < outputHeight; row++) {
+            matchRow(brightnessArray, shapeArray, row, output[row], errorRows);
         }
         return output;
     }
+
+    /**
+     * Runs the algorithm according to the given parameters, passing every row of the ascii art to the
+     * output as soon as it is matched, so the whole ascii art is never held in memory.
+     *
+     * @param output The output the rows are written to.
+     */
+    public void run(StreamingAsciiOutput output) {
+        double[] brightnessArray = image.getSubImagesBrightnessArray(resolution);
+        long[] shapeArray = getShapeArray();
+        char[] row = new char[resolution];
+        double[][] errorRows = newErrorRows();
+        output.begin(resolution);
+        for (int i = 0; i < brightnessArray.length / resolution; i++) {
+            matchRow(brightnessArray, shapeArray, i, row, errorRows);
+            output.outRow(row);
+        }
+        output.end();
+    }
+
+    /*
+     * Returns the rolling buffers of the errors diffused to the current and the next row of sub-images, with
+     * a margin on both sides so the edges need no special case.
+     */
+    private double[][] newErrorRows() {
+        return new double[][]{new double[resolution + 2], new double[resolution + 2]};
+    }
+
+    /*
+     * Matching ASCII character to each sub-image of a row. The brightness array is never modified: the
+     * dithered brightness is the brightness of the sub-image plus its diffused error or its threshold offset.
+     */
+    private void matchRow(double[] brightnessArray, long[] shapeArray, int row, char[] chars,
+                          double[][] errorRows) {
+        double[] currErrors = errorRows[0];
+        double[] nextErrors = errorRows[1];
+        double levelSpacing = ditherMode == DitherMode.ORDERED ? getLevelSpacing() : 0;
+        int index = row * resolution;
+        for (int col = 0; col < resolution; col++) {
+            double brightness = brightnessArray[index + col];
+            if (ditherMode == DitherMode.FLOYD_STEINBERG) {
+                brightness += currErrors[col + 1];
+            } else if (ditherMode == DitherMode.ORDERED) {
+                double threshold = (BAYER_MATRIX[row % BAYER_SIZE][col % BAYER_SIZE] + HALF) / BAYER_LEVELS;
+                brightness += (threshold - HALF) * levelSpacing;
+            }
+            char c = matchChar(brightness, shapeArray, index + col);
+            chars[col] = c;
+            if (ditherMode == DitherMode.FLOYD_STEINBERG) {
+                double error = brightness - subImgCharMatcher.getCharBrightness(c);
+                currErrors[col + 2] += error * RIGHT_WEIGHT;
+                nextErrors[col] += error * BELOW_LEFT_WEIGHT;
+                nextErrors[col + 1] += error * BELOW_WEIGHT;
+                nextErrors[col + 2] += error * BELOW_RIGHT_WEIGHT;
+            }
+        }
+        if (ditherMode == DitherMode.FLOYD_STEINBERG) {
+            Arrays.fill(currErrors, 0);
+            errorRows[0] = nextErrors;
+            errorRows[1] = currErrors;
+        }
+    }
+
+    /*
+     * Returns the average distance between the brightness values of the characters, the amplitude of the
+     * ordered dither.
+     */
+    private double getLevelSpacing() {
+        int levels = subImgCharMatcher.getBrightnessLevels();
+        return levels > 1 ? 1.0 / (levels - 1) : 0;
+    }
+
+    /*
+     * Returns the shapes of the sub-images if the matcher matches by shape, or null to match by brightness.
+     * A streamed image has no shapes, and is always matched by brightness.
+     */
+    private long[] getShapeArray() {
+        if (!subImgCharMatcher.isShapeMatching() || !image.isShapeAvailable()) {
+            return null;
+        }
+        return image.getSubImagesShapeArray(resolution);
+    }
+
+    /*
+     * Matching ASCII character to the sub-image in the given index, with the given brightness.
+     */
+    private char matchChar(double brightness, long[] shapeArray, int index) {
+        if (shapeArray == null) {
+            return subImgCharMatcher.getCharByImageBrightness(brightness);
+        }
+        return subImgCharMatcher.getCharByShape(shapeArray[index], brightness);
+    }
+
+    /**
+     * Gathers the average color of every sub-image, laid out like the ascii art.
+     *
+     * @return The color of every character of the ascii art as 0xRRGGBB.
+     */
+    public int[][] runColors() {
+        int[] colorArray = image.getSubImagesColorArray(resolution);
+        int[][] colors = new int[colorArray.length / resolution][];
+        for (int row = 0; row < colors.length; row++) {
+            colors[row] = Arrays.copyOfRange(colorArray, row * resolution, (row + 1) * resolution);
+        }
+        return colors;
+    }
 }
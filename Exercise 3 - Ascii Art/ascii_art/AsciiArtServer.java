@@ -0,0 +1,455 @@
+package ascii_art;
+
+import ascii_output.AnsiAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import ascii_output.TextAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import exceptions.ExceedingBoundsException;
+import exceptions.ExecuteException;
+import exceptions.IncorrectFormatException;
+import image.ImageProcessing;
+import image.ImageProcessingCache;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A long-lived HTTP server that renders uploaded images to ascii art, so a client does not pay for starting a
+ * JVM and rasterizing the glyphs on every image. The glyphs are warmed once at startup, and the prepared
+ * images (keyed by the digest of their content), the character matchers and the rendered ascii art are shared
+ * by all the requests.
+ * An image is rendered by posting its file as the body of a request to /render, with the optional query
+ * parameters res (the number of characters in a row), chars ("all" or the characters themselves), format
+ * (html, colorhtml, txt or ansi), dither (none, fs or ordered) and match (exact, quantized or shape).
+ * Every request is handled on its own thread, and at most a given number of requests are handled at once;
+ * further connections wait until a request ends.
+ * Usage: AsciiArtServer [port] [maximal concurrent requests]
+ *
+ * @author Asaf Korman
+ */
+public class AsciiArtServer {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final String RENDER_PATH = "/render";
+    private static final String POST_METHOD = "POST";
+    // Request parameters constants
+    private static final String RES_PARAM = "res";
+    private static final String CHARS_PARAM = "chars";
+    private static final String FORMAT_PARAM = "format";
+    private static final String DITHER_PARAM = "dither";
+    private static final String MATCH_PARAM = "match";
+    private static final String PARAM_SEPARATOR = "&";
+    private static final String VALUE_SEPARATOR = "=";
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final String DEFAULT_CHAR_SET = "0123456789";
+    private static final String ALL_CHARS = "all";
+    private static final char SPACE = ' ';
+    private static final char TILDE = '~';
+    private static final String HTML_FORMAT = "html";
+    private static final String COLOR_HTML_FORMAT = "colorhtml";
+    private static final String TEXT_FORMAT = "txt";
+    private static final String ANSI_FORMAT = "ansi";
+    private static final String NO_DITHER = "none";
+    private static final String FLOYD_STEINBERG = "fs";
+    private static final String ORDERED = "ordered";
+    private static final String EXACT_MATCH = "exact";
+    private static final String QUANTIZED_MATCH = "quantized";
+    private static final String SHAPE_MATCH = "shape";
+    private static final String HTML_FONT = "Courier New";
+    // Response constants
+    private static final int OK = 200;
+    private static final int BAD_REQUEST = 400;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int CHUNKED_LENGTH = 0;
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ALLOW = "Allow";
+    private static final String GZIP = "gzip";
+    private static final String HTML_CONTENT_TYPE = "text/html; charset=utf-8";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    private static final int RESPONSE_BUFFER_SIZE = 1 << 16;
+    // Caches constants
+    private static final int MAX_UPLOAD_BYTES = 1 << 25;
+    private static final int UPLOAD_BUFFER_SIZE = 1 << 16;
+    // Prepared images of up to 256 MB in total are kept in memory, like in the shell.
+    private static final long IMAGE_CACHE_MAX_BYTES = 1L << 28;
+    private static final int RENDER_CACHE_CAPACITY = 64;
+    private static final int MATCHER_CACHE_CAPACITY = 64;
+    // Errors constants
+    private static final String INCORRECT_FORMAT_EXCEPTION = "Did not %s due to incorrect format.";
+    private static final String EXECUTE_FORMAT_EXCEPTION = "Did not execute due to %s";
+    private static final String QUERY_EXCEPTION_PROMPT = "read the query";
+    private static final String RESOLUTION_EXCEPTION_PROMPT = "change resolution";
+    private static final String RESOLUTION_EXCEED_BOUNDS_EXCEPTION = "Did not change resolution due to " +
+            "exceeding boundaries.";
+    private static final String OUTPUT_INCORRECT_FORMAT_EXCEPTION = "change output method";
+    private static final String MATCH_INCORRECT_FORMAT_EXCEPTION = "change matching method";
+    private static final String DITHER_INCORRECT_FORMAT_EXCEPTION = "change dithering";
+    private static final String EMPTY_SET_EXCEPTION = "Did not Execute. Charset is empty.";
+    private static final String IMAGE_EXCEPTION = "problem with image file.";
+    private static final String METHOD_EXCEPTION = "Images are rendered by POST requests only.";
+    private static final String UPLOAD_TOO_LARGE_EXCEPTION = "Did not execute due to an image file bigger " +
+            "than %d MB.";
+    private static final int BYTES_IN_MB = 1 << 20;
+    private static final String USAGE = "Usage: AsciiArtServer [port] [maximal concurrent requests]";
+    private static final String LISTENING_FORMAT = "Listening on port %d, handling up to %d requests at " +
+            "once%n";
+
+    /*
+     * The parameters of a single rendering.
+     */
+    private static final class RenderRequest {
+
+        private int resolution;
+        private char[] charSet;
+        private String format;
+        private DitherMode ditherMode;
+        private String matchMethod;
+    }
+
+    private final ImageProcessingCache imageCache;
+    // Rendered ascii art, shared by all the requests; not thread-safe, so it is used under its own lock.
+    private final RenderCache renderCache;
+    // The matchers of the recently used charsets and matching methods. A matcher never changes once it is
+    // cached, so several requests may match with it at once.
+    private final Map<String, SubImgCharMatcher> matchers;
+
+    /**
+     * Constructor. Warms the glyphs of the printable ASCII characters, so the first request does not pay for
+     * rasterizing them.
+     */
+    public AsciiArtServer() {
+        this.imageCache = new ImageProcessingCache(IMAGE_CACHE_MAX_BYTES);
+        this.renderCache = new RenderCache(RENDER_CACHE_CAPACITY);
+        this.matchers = new LinkedHashMap<>(MATCHER_CACHE_CAPACITY, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SubImgCharMatcher> eldest) {
+                return size() > MATCHER_CACHE_CAPACITY;
+            }
+        };
+        getMatcher(allChars(), SHAPE_MATCH).getCharByShape(0, 0);
+    }
+
+    /**
+     * Starts serving on the given port.
+     *
+     * @param port The port to listen on.
+     * @param maxConcurrentRequests The maximal number of requests handled at once.
+     * @return The running server.
+     * @throws IOException If the port cannot be bound.
+     */
+    public HttpServer start(int port, int maxConcurrentRequests) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(RENDER_PATH, this::handleRender);
+        server.setExecutor(limitedExecutor(maxConcurrentRequests));
+        server.start();
+        return server;
+    }
+
+    /*
+     * Returns an executor that runs every request on its own thread, blocking the submitting thread (the
+     * server's dispatcher) while the maximal number of requests are running. The threads are reused and
+     * released when idle.
+     */
+    private static Executor limitedExecutor(int maxConcurrentRequests) {
+        Semaphore permits = new Semaphore(maxConcurrentRequests);
+        ExecutorService threads = Executors.newCachedThreadPool();
+        return command -> {
+            permits.acquireUninterruptibly();
+            try {
+                threads.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        };
+    }
+
+    /*
+     * Handles a request to render an image. An invalid request is answered with the error, the way the shell
+     * reports it.
+     */
+    private void handleRender(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase(POST_METHOD)) {
+                exchange.getResponseHeaders().set(ALLOW, POST_METHOD);
+                sendError(exchange, METHOD_NOT_ALLOWED, METHOD_EXCEPTION);
+                return;
+            }
+            RenderRequest request = parseRequest(parseQuery(exchange.getRequestURI().getRawQuery()));
+            byte[] content = readUpload(exchange.getRequestBody());
+            if (content == null) {
+                sendError(exchange, PAYLOAD_TOO_LARGE, String.format(UPLOAD_TOO_LARGE_EXCEPTION,
+                        MAX_UPLOAD_BYTES / BYTES_IN_MB));
+                return;
+            }
+            ImageProcessing image;
+            try {
+                image = imageCache.get(content);
+            } catch (IOException | RuntimeException e) {
+                // Decoders report some malformed content with runtime exceptions.
+                throw new ExecuteException(IMAGE_EXCEPTION);
+            }
+            if (!image.isResolutionAvailable(request.resolution)) {
+                throw new ExceedingBoundsException(RESOLUTION_EXCEED_BOUNDS_EXCEPTION);
+            }
+            render(exchange, request, image);
+        } catch (IncorrectFormatException e) {
+            sendError(exchange, BAD_REQUEST, String.format(INCORRECT_FORMAT_EXCEPTION, e.getType()));
+        } catch (ExceedingBoundsException e) {
+            sendError(exchange, BAD_REQUEST, e.getType());
+        } catch (ExecuteException e) {
+            sendError(exchange, BAD_REQUEST, String.format(EXECUTE_FORMAT_EXCEPTION, e.getType()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * Renders the image, reusing the ascii art of a previous request with the same image and parameters, and
+     * writes it as the response.
+     */
+    private void render(HttpExchange exchange, RenderRequest request, ImageProcessing image) throws IOException {
+        SubImgCharMatcher matcher = getMatcher(request.charSet, request.matchMethod);
+        String fingerprint = matcher.getFingerprint();
+        char[][] asciiArt;
+        synchronized (renderCache) {
+            asciiArt = renderCache.get(image.getId(), request.resolution, fingerprint, request.ditherMode);
+        }
+        if (asciiArt == null) {
+            asciiArt = new AsciiArtAlgorithm(image, request.resolution, matcher, request.ditherMode).run();
+            synchronized (renderCache) {
+                renderCache.put(image.getId(), request.resolution, fingerprint, request.ditherMode, asciiArt);
+            }
+        }
+        boolean html = request.format.equals(HTML_FORMAT) || request.format.equals(COLOR_HTML_FORMAT);
+        boolean colored = request.format.equals(COLOR_HTML_FORMAT) || request.format.equals(ANSI_FORMAT);
+        // The colors do not depend on the charset, and are kept by the processed image.
+        int[][] colors = colored ? new AsciiArtAlgorithm(image, request.resolution, matcher).runColors() : null;
+        boolean gzip = html && acceptsGzip(exchange);
+        exchange.getResponseHeaders().set(CONTENT_TYPE, html ? HTML_CONTENT_TYPE : TEXT_CONTENT_TYPE);
+        if (gzip) {
+            exchange.getResponseHeaders().set(CONTENT_ENCODING, GZIP);
+        }
+        exchange.sendResponseHeaders(OK, CHUNKED_LENGTH);
+        OutputStream body = new BufferedOutputStream(exchange.getResponseBody(), RESPONSE_BUFFER_SIZE);
+        if (html) {
+            HtmlAsciiOutput output = new HtmlAsciiOutput(body, HTML_FONT, gzip);
+            if (colored) {
+                output.out(asciiArt, colors);
+            } else {
+                output.out(asciiArt);
+            }
+        } else if (colored) {
+            PrintStream stream = new PrintStream(body, false, StandardCharsets.UTF_8);
+            new AnsiAsciiOutput(stream).out(asciiArt, colors);
+            stream.close();
+        } else {
+            new TextAsciiOutput(body).out(asciiArt);
+        }
+    }
+
+    /*
+     * Returns the cached matcher of the given charset and matching method, creating it if it is not cached.
+     */
+    private SubImgCharMatcher getMatcher(char[] charSet, String matchMethod) {
+        String key = matchMethod + VALUE_SEPARATOR + String.valueOf(charSet);
+        synchronized (matchers) {
+            SubImgCharMatcher matcher = matchers.get(key);
+            if (matcher == null) {
+                matcher = new SubImgCharMatcher(charSet);
+                matcher.setQuantized(matchMethod.equals(QUANTIZED_MATCH));
+                matcher.setShapeMatching(matchMethod.equals(SHAPE_MATCH));
+                matchers.put(key, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /*
+     * Reads the parameters of a rendering from the query, with the defaults of the missing ones.
+     */
+    private static RenderRequest parseRequest(Map<String, String> params) throws IncorrectFormatException,
+            ExceedingBoundsException {
+        RenderRequest request = new RenderRequest();
+        try {
+            request.resolution = Integer.parseInt(params.getOrDefault(RES_PARAM,
+                    String.valueOf(DEFAULT_RESOLUTION)));
+        } catch (NumberFormatException e) {
+            throw new IncorrectFormatException(RESOLUTION_EXCEPTION_PROMPT);
+        }
+        String chars = params.getOrDefault(CHARS_PARAM, DEFAULT_CHAR_SET);
+        if (chars.isEmpty()) {
+            throw new ExceedingBoundsException(EMPTY_SET_EXCEPTION);
+        }
+        request.charSet = chars.equals(ALL_CHARS) ? allChars() : distinctChars(chars);
+        request.format = params.getOrDefault(FORMAT_PARAM, HTML_FORMAT).toLowerCase();
+        if (!(request.format.equals(HTML_FORMAT) || request.format.equals(COLOR_HTML_FORMAT) ||
+                request.format.equals(TEXT_FORMAT) || request.format.equals(ANSI_FORMAT))) {
+            throw new IncorrectFormatException(OUTPUT_INCORRECT_FORMAT_EXCEPTION);
+        }
+        switch (params.getOrDefault(DITHER_PARAM, NO_DITHER).toLowerCase()) {
+        case NO_DITHER:
+            request.ditherMode = DitherMode.NONE;
+            break;
+        case FLOYD_STEINBERG:
+            request.ditherMode = DitherMode.FLOYD_STEINBERG;
+            break;
+        case ORDERED:
+            request.ditherMode = DitherMode.ORDERED;
+            break;
+        default:
+            throw new IncorrectFormatException(DITHER_INCORRECT_FORMAT_EXCEPTION);
+        }
+        request.matchMethod = params.getOrDefault(MATCH_PARAM, EXACT_MATCH).toLowerCase();
+        if (!(request.matchMethod.equals(EXACT_MATCH) || request.matchMethod.equals(QUANTIZED_MATCH) ||
+                request.matchMethod.equals(SHAPE_MATCH))) {
+            throw new IncorrectFormatException(MATCH_INCORRECT_FORMAT_EXCEPTION);
+        }
+        return request;
+    }
+
+    /*
+     * Splits a raw query string into its decoded parameters. A repeated parameter keeps its last value.
+     */
+    private static Map<String, String> parseQuery(String rawQuery) throws IncorrectFormatException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        try {
+            for (String param : rawQuery.split(PARAM_SEPARATOR)) {
+                int separator = param.indexOf(VALUE_SEPARATOR);
+                String name = separator < 0 ? param : param.substring(0, separator);
+                String value = separator < 0 ? "" : param.substring(separator + 1);
+                params.put(URLDecoder.decode(name, StandardCharsets.UTF_8).toLowerCase(),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IncorrectFormatException(QUERY_EXCEPTION_PROMPT);
+        }
+        return params;
+    }
+
+    /*
+     * Reads the uploaded image. Returns null if it is bigger than MAX_UPLOAD_BYTES.
+     */
+    private static byte[] readUpload(InputStream body) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            if (content.size() + read > MAX_UPLOAD_BYTES) {
+                return null;
+            }
+            content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+    /*
+     * Checks whether the client accepts a gzip compressed response.
+     */
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        for (String encodings : exchange.getRequestHeaders().getOrDefault(ACCEPT_ENCODING,
+                Collections.emptyList())) {
+            for (String encoding : encodings.split(",")) {
+                if (encoding.trim().toLowerCase().startsWith(GZIP)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Answers with an error message.
+     */
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(CONTENT_TYPE, TEXT_CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /*
+     * Returns the printable ASCII characters.
+     */
+    private static char[] allChars() {
+        char[] chars = new char[TILDE - SPACE + 1];
+        for (char c = SPACE; c <= TILDE; c++) {
+            chars[c - SPACE] = c;
+        }
+        return chars;
+    }
+
+    /*
+     * Returns the distinct characters of a string in ascending order, so equal sets share a cached matcher.
+     */
+    private static char[] distinctChars(String chars) {
+        char[] sorted = chars.toCharArray();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param args Optionally the port, and the maximal number of requests handled at once, by default the
+     *             number of processors.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int maxConcurrentRequests = Runtime.getRuntime().availableProcessors();
+        try {
+            if (args.length > 0) {
+                port = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                maxConcurrentRequests = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (maxConcurrentRequests < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        new AsciiArtServer().start(port, maxConcurrentRequests);
+        System.out.printf(LISTENING_FORMAT, port, maxConcurrentRequests);
+    }
+}
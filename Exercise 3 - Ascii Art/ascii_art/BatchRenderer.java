@@ -0,0 +1,251 @@
+package ascii_art;
+
+import ascii_output.HtmlAsciiOutput;
+import ascii_output.TextAsciiOutput;
+import image.ImageProcessing;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless entry point that renders every image of a directory (or every file matching a glob) to ascii art
+ * files, without the interactive shell. Every image is decoded, matched and written as an independent task
+ * on a fixed pool of worker threads. The queue of waiting tasks is bounded, and once it is full the
+ * submitting thread renders the next image itself, so no more than a few images are held in memory at once,
+ * whatever the size of the directory.
+ * Usage: BatchRenderer &lt;directory or glob&gt; &lt;output directory&gt; [resolution] [charset] [html|html.gz|txt]
+ *
+ * @author Asaf Korman
+ */
+public class BatchRenderer {
+
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final String DEFAULT_CHAR_SET = "0123456789";
+    private static final String ALL_CHARS = "all";
+    private static final char SPACE = ' ';
+    private static final char TILDE = '~';
+    private static final String HTML_FORMAT = "html";
+    private static final String GZIP_HTML_FORMAT = "html.gz";
+    private static final String TEXT_FORMAT = "txt";
+    private static final String DEFAULT_FORMAT = HTML_FORMAT;
+    private static final String HTML_FONT = "Courier New";
+    private static final char EXTENSION_SEPARATOR = '.';
+    // Tasks waiting for a worker, per worker.
+    private static final int QUEUED_TASKS_PER_THREAD = 2;
+    private static final double NANOS_IN_SECOND = 1e9;
+    private static final double BYTES_IN_MB = 1 << 20;
+    private static final String USAGE = "Usage: BatchRenderer <directory or glob> <output directory> " +
+            "[resolution] [charset|all] [html|html.gz|txt]";
+    private static final String RENDER_FAILED_FORMAT = "Did not render %s due to %s%n";
+    private static final String SUMMARY_FORMAT = "Rendered %d images (%d failed) in %.2f s: %.1f images/s, " +
+            "%.1f MB/s%n";
+
+    private final Path outputDir;
+    private final int resolution;
+    private final SubImgCharMatcher subImgCharMatcher;
+    private final String format;
+    private final int threads;
+    private final AtomicInteger renderedImages;
+    private final AtomicInteger failedImages;
+    private final AtomicLong renderedBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param outputDir The directory the ascii art files are written to.
+     * @param resolution The number of characters in a row of every output.
+     * @param charSet The characters the images are rendered with.
+     * @param format The format of the output files: html, gzip compressed html or txt.
+     * @param threads The number of worker threads.
+     */
+    public BatchRenderer(Path outputDir, int resolution, char[] charSet, String format, int threads) {
+        this.outputDir = outputDir;
+        this.resolution = resolution;
+        this.subImgCharMatcher = new SubImgCharMatcher(charSet);
+        this.format = format;
+        this.threads = threads;
+        this.renderedImages = new AtomicInteger();
+        this.failedImages = new AtomicInteger();
+        this.renderedBytes = new AtomicLong();
+    }
+
+    /**
+     * Renders all the given images and waits for them to be written.
+     *
+     * @param images The paths of the images.
+     * @throws InterruptedException If interrupted while waiting for the workers.
+     */
+    public void renderAll(List<Path> images) throws InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUED_TASKS_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (Path image : images) {
+                executor.execute(() -> render(image));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Decodes, matches and writes a single image. A failure is reported and does not stop the batch.
+     */
+    private void render(Path image) {
+        try {
+            ImageProcessing imageToProcess = ImageProcessing.fromFile(image.toString());
+            if (!imageToProcess.isResolutionAvailable(resolution)) {
+                throw new IllegalArgumentException("resolution " + resolution + " not available");
+            }
+            AsciiArtAlgorithm asciiArtAlgorithm = new AsciiArtAlgorithm(imageToProcess, resolution,
+                    subImgCharMatcher);
+            String filename = getOutputFilename(image);
+            boolean failed;
+            if (format.equals(TEXT_FORMAT)) {
+                TextAsciiOutput output = new TextAsciiOutput(filename);
+                output.out(asciiArtAlgorithm.run());
+                failed = output.hasFailed();
+            } else {
+                // The rows are written as they are matched, without holding the whole ascii art.
+                HtmlAsciiOutput output = new HtmlAsciiOutput(filename, HTML_FONT, format.equals(GZIP_HTML_FORMAT));
+                asciiArtAlgorithm.run(output);
+                failed = output.hasFailed();
+            }
+            if (failed) {
+                throw new IOException("an error writing " + filename);
+            }
+            renderedImages.incrementAndGet();
+            renderedBytes.addAndGet(Files.size(image));
+        } catch (IOException | RuntimeException e) {
+            failedImages.incrementAndGet();
+            System.err.printf(RENDER_FAILED_FORMAT, image, e.getMessage());
+        }
+    }
+
+    /*
+     * Returns the output file of the given image: a file in the output directory named after the whole name
+     * of the image, extension included, so images that differ only by their extension (a.png and a.jpg) do
+     * not overwrite each other.
+     */
+    private String getOutputFilename(Path image) {
+        return outputDir.resolve(image.getFileName().toString() + EXTENSION_SEPARATOR + format).toString();
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of images rendered successfully.
+     */
+    public int getRenderedImages() {
+        return renderedImages.get();
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of images that could not be rendered.
+     */
+    public int getFailedImages() {
+        return failedImages.get();
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The total size in bytes of the image files rendered successfully.
+     */
+    public long getRenderedBytes() {
+        return renderedBytes.get();
+    }
+
+    /*
+     * Returns the regular files of a directory, or the files matching a glob such as "photos/*.jpg".
+     */
+    private static List<Path> listImages(String input) throws IOException {
+        Path path = Paths.get(input);
+        Path dir = path;
+        String glob = "*";
+        if (!Files.isDirectory(path)) {
+            dir = path.getParent() == null ? Paths.get(".") : path.getParent();
+            glob = path.getFileName().toString();
+        }
+        List<Path> images = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    images.add(file);
+                }
+            }
+        }
+        images.sort(null);
+        return images;
+    }
+
+    /*
+     * Returns the characters of the charset argument: the printable ASCII characters for "all", or the
+     * characters of the argument itself.
+     */
+    private static char[] parseCharSet(String arg) {
+        if (arg.equals(ALL_CHARS)) {
+            char[] chars = new char[TILDE - SPACE + 1];
+            for (char c = SPACE; c <= TILDE; c++) {
+                chars[c - SPACE] = c;
+            }
+            return chars;
+        }
+        return arg.toCharArray();
+    }
+
+    /**
+     * Renders the images and prints the throughput.
+     *
+     * @param args The input directory or glob, the output directory, and optionally the resolution, the
+     *             charset and the output format.
+     * @throws IOException If the input or the output directory cannot be accessed.
+     * @throws InterruptedException If interrupted while waiting for the workers.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int resolution = DEFAULT_RESOLUTION;
+        String charSet = args.length > 3 ? args[3] : DEFAULT_CHAR_SET;
+        String format = args.length > 4 ? args[4].toLowerCase() : DEFAULT_FORMAT;
+        try {
+            if (args.length > 2) {
+                resolution = Integer.parseInt(args[2]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (charSet.isEmpty() || !(format.equals(HTML_FORMAT) || format.equals(GZIP_HTML_FORMAT) ||
+                format.equals(TEXT_FORMAT))) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        List<Path> images = listImages(args[0]);
+        Path outputDir = Paths.get(args[1]);
+        Files.createDirectories(outputDir);
+        BatchRenderer renderer = new BatchRenderer(outputDir, resolution, parseCharSet(charSet), format,
+                Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        renderer.renderAll(images);
+        double seconds = (System.nanoTime() - start) / NANOS_IN_SECOND;
+        System.out.printf(SUMMARY_FORMAT, renderer.getRenderedImages(), renderer.getFailedImages(), seconds,
+                renderer.getRenderedImages() / seconds, renderer.getRenderedBytes() / BYTES_IN_MB / seconds);
+    }
+}
@@ -0,0 +1,9 @@
+package ascii_art;
+
+/**
+ * Represents the ways the brightness of the sub-images can be dithered before they are matched to
+ * characters.
+ *
+ * @author Asaf Korman
+ */
+public enum DitherMode {NONE, FLOYD_STEINBERG, ORDERED}
@@ -0,0 +1,298 @@
+package ascii_art;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the stages of the ascii art pipeline: the wall time of every stage, the bytes the calling thread
+ * allocated during it, and the number of sub-images matched per second. Loading an image is measured as a
+ * run of its own, so its decode is not charged to the next rendering. Keeps the last run of each kind and a
+ * window of recent runs for percentiles, and may append every run as a JSON line to a file.
+ * The allocations are read from the JVM's ThreadMXBean when it supports per-thread allocation counting, and
+ * only cover the calling thread, not the fork/join workers of the brightness pass.
+ *
+ * @author Asaf Korman
+ */
+class PipelineStats {
+
+    static final String DECODE_STAGE = "decode";
+    static final String BRIGHTNESS_STAGE = "brightness";
+    static final String MATCH_STAGE = "match";
+    static final String COLOR_STAGE = "color";
+    static final String OUTPUT_STAGE = "output";
+
+    private static final int HISTORY_SIZE = 100;
+    private static final double[] PERCENTILES = {50, 90, 99};
+    private static final double NANOS_IN_MILLI = 1e6;
+    private static final double NANOS_IN_SECOND = 1e9;
+    private static final double BYTES_IN_KB = 1 << 10;
+    private static final double HUNDRED = 100;
+    private static final long UNKNOWN_BYTES = -1;
+    private static final String TOTAL = "total";
+    private static final String NO_RUNS = "No ascii art was rendered yet.";
+    private static final String RENDER_RUN = "render";
+    private static final String LOAD_RUN = "load";
+    private static final String LAST_LOAD_FORMAT = "Last image load: %.2f ms%n";
+    private static final String LAST_RUN_FORMAT = "Last run: %d cells at resolution %d, %.2f ms, %.0f cells/s%s%n";
+    private static final String CACHED_RUN = " (from the render cache)";
+    private static final String STAGE_FORMAT = "  %-10s %10.2f ms %12.1f KB%n";
+    private static final String PERCENTILES_HEADER = "Last %d runs (ms):%n  %-10s %10s %10s %10s%n";
+    private static final String PERCENTILES_FORMAT = "  %-10s %10.2f %10.2f %10.2f%n";
+
+    /*
+     * The measurements of a single run of the pipeline.
+     */
+    private static final class Run {
+
+        private final Map<String, long[]> stages = new LinkedHashMap<>();
+        private final String kind;
+        private long cells;
+        private int resolution;
+        private boolean cached;
+        private long totalNanos;
+
+        Run(String kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final ThreadMXBean threadBean;
+    private final boolean allocationSupported;
+    private final ArrayDeque<Run> history;
+    private Run currRun;
+    private Run lastRun;
+    private Run lastLoad;
+    private long runCount;
+    private long stageStartNanos;
+    private long stageStartBytes;
+    private Writer jsonWriter;
+
+    /**
+     * Constructor.
+     */
+    PipelineStats() {
+        this.threadBean = ManagementFactory.getThreadMXBean();
+        this.allocationSupported = threadBean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported() &&
+                ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled();
+        this.history = new ArrayDeque<>(HISTORY_SIZE);
+        this.currRun = new Run(RENDER_RUN);
+    }
+
+    /**
+     * Appends every following run as a JSON line to the given file.
+     *
+     * @param filename The path of the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    void dumpJsonLines(String filename) throws IOException {
+        jsonWriter = new FileWriter(filename, true);
+    }
+
+    /**
+     * Starts measuring a stage.
+     */
+    void startStage() {
+        stageStartBytes = allocatedBytes();
+        stageStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the stage started last, and adds it to the current run.
+     *
+     * @param stage The name of the stage.
+     */
+    void endStage(String stage) {
+        addStage(currRun, stage);
+    }
+
+    /**
+     * Ends the stage started last as the decode of an image load, and keeps it as a run of its own.
+     */
+    void endLoad() {
+        Run run = new Run(LOAD_RUN);
+        addStage(run, DECODE_STAGE);
+        lastLoad = run;
+        keepRun(run);
+    }
+
+    /**
+     * Ends the current run, keeps it in the history and dumps it if asked to.
+     *
+     * @param cells The number of sub-images in the ascii art.
+     * @param resolution The resolution of the ascii art.
+     * @param cached True if the ascii art was taken from the render cache.
+     */
+    void endRun(long cells, int resolution, boolean cached) {
+        Run run = currRun;
+        run.cells = cells;
+        run.resolution = resolution;
+        run.cached = cached;
+        lastRun = run;
+        currRun = new Run(RENDER_RUN);
+        keepRun(run);
+    }
+
+    /*
+     * Adds the wall time and the allocations since the stage started to a stage of the given run.
+     */
+    private void addStage(Run run, String stage) {
+        long nanos = System.nanoTime() - stageStartNanos;
+        long bytes = allocationSupported ? allocatedBytes() - stageStartBytes : UNKNOWN_BYTES;
+        long[] measurement = run.stages.computeIfAbsent(stage, key -> new long[2]);
+        measurement[0] += nanos;
+        measurement[1] = bytes == UNKNOWN_BYTES ? UNKNOWN_BYTES : measurement[1] + bytes;
+    }
+
+    /*
+     * Totals a finished run, keeps it in the history and dumps it if asked to.
+     */
+    private void keepRun(Run run) {
+        for (long[] measurement : run.stages.values()) {
+            run.totalNanos += measurement[0];
+        }
+        if (history.size() == HISTORY_SIZE) {
+            history.removeFirst();
+        }
+        history.addLast(run);
+        runCount++;
+        if (jsonWriter != null) {
+            writeJsonLine(run);
+        }
+    }
+
+    /**
+     * Prints the stages of the last rendering and of the last image load, and the percentiles of the wall time
+     * of every stage in the recent runs. The total only covers renderings.
+     */
+    void print() {
+        if (lastRun == null) {
+            System.out.println(NO_RUNS);
+        } else {
+            System.out.printf(LAST_RUN_FORMAT, lastRun.cells, lastRun.resolution, lastRun.totalNanos /
+                    NANOS_IN_MILLI, cellsPerSecond(lastRun), lastRun.cached ? CACHED_RUN : "");
+            printStages(lastRun);
+        }
+        if (lastLoad != null) {
+            System.out.printf(LAST_LOAD_FORMAT, lastLoad.totalNanos / NANOS_IN_MILLI);
+            printStages(lastLoad);
+        }
+        if (history.isEmpty()) {
+            return;
+        }
+        System.out.printf(PERCENTILES_HEADER, history.size(), "stage", "p50", "p90", "p99");
+        for (String stage : new String[]{DECODE_STAGE, BRIGHTNESS_STAGE, MATCH_STAGE, COLOR_STAGE, OUTPUT_STAGE,
+                TOTAL}) {
+            long[] nanos = stageHistory(stage);
+            if (nanos.length == 0) {
+                continue;
+            }
+            Arrays.sort(nanos);
+            System.out.printf(PERCENTILES_FORMAT, stage, percentile(nanos, PERCENTILES[0]) / NANOS_IN_MILLI,
+                    percentile(nanos, PERCENTILES[1]) / NANOS_IN_MILLI,
+                    percentile(nanos, PERCENTILES[2]) / NANOS_IN_MILLI);
+        }
+    }
+
+    /*
+     * Prints the wall time and the allocations of every stage of a run.
+     */
+    private static void printStages(Run run) {
+        for (Map.Entry<String, long[]> stage : run.stages.entrySet()) {
+            long bytes = stage.getValue()[1];
+            System.out.printf(STAGE_FORMAT, stage.getKey(), stage.getValue()[0] / NANOS_IN_MILLI,
+                    bytes == UNKNOWN_BYTES ? Double.NaN : bytes / BYTES_IN_KB);
+        }
+    }
+
+    /*
+     * Returns the wall times of a stage in the recent runs that have it, or of the whole of the recent
+     * renderings.
+     */
+    private long[] stageHistory(String stage) {
+        List<Long> nanos = new ArrayList<>();
+        for (Run run : history) {
+            if (stage.equals(TOTAL)) {
+                if (run.kind.equals(RENDER_RUN)) {
+                    nanos.add(run.totalNanos);
+                }
+            } else if (run.stages.containsKey(stage)) {
+                nanos.add(run.stages.get(stage)[0]);
+            }
+        }
+        long[] values = new long[nanos.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = nanos.get(i);
+        }
+        return values;
+    }
+
+    /*
+     * Returns the nearest-rank percentile of sorted values.
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / HUNDRED * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /*
+     * Returns the number of sub-images the run produced per second of its wall time.
+     */
+    private static double cellsPerSecond(Run run) {
+        return run.totalNanos == 0 ? 0 : run.cells * NANOS_IN_SECOND / run.totalNanos;
+    }
+
+    /*
+     * Returns the number of bytes the calling thread allocated so far.
+     */
+    private long allocatedBytes() {
+        if (!allocationSupported) {
+            return UNKNOWN_BYTES;
+        }
+        return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /*
+     * Appends a run to the JSON lines file. The dump is for monitoring only, so failing to write it stops the
+     * dump and does not fail the run.
+     */
+    private void writeJsonLine(Run run) {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format(Locale.ROOT,
+                "{\"run\":%d,\"kind\":\"%s\",\"resolution\":%d,\"cells\":%d,\"cached\":%b,\"totalNanos\":%d," +
+                        "\"cellsPerSecond\":%.1f,\"stages\":{", runCount, run.kind, run.resolution, run.cells,
+                run.cached, run.totalNanos, cellsPerSecond(run)));
+        boolean first = true;
+        for (Map.Entry<String, long[]> stage : run.stages.entrySet()) {
+            if (!first) {
+                line.append(',');
+            }
+            first = false;
+            line.append(String.format(Locale.ROOT, "\"%s\":{\"nanos\":%d,\"bytes\":%d}", stage.getKey(),
+                    stage.getValue()[0], stage.getValue()[1]));
+        }
+        line.append("}}").append(System.lineSeparator());
+        try {
+            jsonWriter.write(line.toString());
+            jsonWriter.flush();
+        } catch (IOException e) {
+            try {
+                jsonWriter.close();
+            } catch (IOException closeException) {
+                // The dump is stopped anyway.
+            }
+            jsonWriter = null;
+        }
+    }
+}
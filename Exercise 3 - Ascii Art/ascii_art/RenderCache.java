@@ -0,0 +1,125 @@
+package ascii_art;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of ascii art results, evicting the least recently used one. A result is identified by the
+ * processed image, the resolution, the fingerprint of the character matcher and the dithering, so it can be
+ * reused as long as none of them changed, whatever the output method.
+ *
+ * @author Asaf Korman
+ */
+class RenderCache {
+
+    private final Map<Key, char[][]> results;
+    private long hits;
+    private long misses;
+
+    /*
+     * Identifies a single run of the algorithm.
+     */
+    private static final class Key {
+
+        private final long imageId;
+        private final int resolution;
+        private final String matcherFingerprint;
+        private final DitherMode ditherMode;
+
+        Key(long imageId, int resolution, String matcherFingerprint, DitherMode ditherMode) {
+            this.imageId = imageId;
+            this.resolution = resolution;
+            this.matcherFingerprint = matcherFingerprint;
+            this.ditherMode = ditherMode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return imageId == otherKey.imageId && resolution == otherKey.resolution &&
+                    matcherFingerprint.equals(otherKey.matcherFingerprint) && ditherMode == otherKey.ditherMode;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageId, resolution, matcherFingerprint, ditherMode);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximal number of results the cache holds.
+     */
+    RenderCache(int capacity) {
+        this.results = new LinkedHashMap<>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, char[][]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached result of the given run, and counts a hit or a miss.
+     *
+     * @param imageId The id of the processed image.
+     * @param resolution The resolution of the output.
+     * @param matcherFingerprint The fingerprint of the character matcher.
+     * @param ditherMode The dithering of the run.
+     * @return The ascii art, or null if it is not in the cache. Must not be modified.
+     */
+    char[][] get(long imageId, int resolution, String matcherFingerprint, DitherMode ditherMode) {
+        char[][] result = results.get(new Key(imageId, resolution, matcherFingerprint, ditherMode));
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    /**
+     * Puts the result of the given run in the cache.
+     *
+     * @param imageId The id of the processed image.
+     * @param resolution The resolution of the output.
+     * @param matcherFingerprint The fingerprint of the character matcher.
+     * @param ditherMode The dithering of the run.
+     * @param result The ascii art. Must not be modified afterwards.
+     */
+    void put(long imageId, int resolution, String matcherFingerprint, DitherMode ditherMode, char[][] result) {
+        results.put(new Key(imageId, resolution, matcherFingerprint, ditherMode), result);
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of lookups that found a result.
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of lookups that did not find a result.
+     */
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of results in the cache.
+     */
+    int size() {
+        return results.size();
+    }
+}
@@ -1,16 +1,26 @@
 package ascii_art;
 
+import ascii_output.AnsiAsciiOutput;
 import ascii_output.AsciiOutput;
+import ascii_output.ColoredAsciiOutput;
 import ascii_output.ConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
 import exceptions.ExceedingBoundsException;
 import exceptions.ExecuteException;
 import exceptions.IncorrectFormatException;
-import image.Image;
 import image.ImageProcessing;
+import image.ImageProcessingCache;
 import image_char_matching.SubImgCharMatcher;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
 
 /**
  * Responsible for the UI operations.
@@ -25,6 +35,13 @@ public class Shell {
     // Prompts constants
     private static final int DEFAULT_RESOLUTION = 128;
     private static final String INPUT_PROMPT = ">>> ";
+    // Script mode constants
+    private static final String SCRIPT_ARG = "--script";
+    private static final int SCRIPT_OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final String STATS_JSON_ARG = "--stats-json";
+    private static final String THREADS_ARG = "--threads";
+    private static final String ARG_PREFIX = "--";
+    private static final String USAGE = "Usage: Shell [--script [file]] [--stats-json file] [--threads n]";
     private static final String EXIT_PROMPT = "exit";
     private static final String CHARS_PROMPT = "chars";
     private static final String ADD_PROMPT = "add";
@@ -44,20 +61,43 @@ public class Shell {
     private static final String RESOLUTION_EXCEPTION_PROMPT = "change resolution";
     private static final String CHANGE_RES_PROMPT = "Resolution set to ";
     private static final String IMAGE_PROMPT = "image";
+    // Prepared images of up to 256 MB in total (about 20 megapixels in memory) are kept.
+    private static final long IMAGE_CACHE_MAX_BYTES = 1L << 28;
     // change output system constants
     private static final String OUT_PROMPT = "output";
     private static final String CONSOLE_PROMPT = "console";
     private static final String HTML_PROMPT = "html";
+    private static final String ANSI_PROMPT = "ansi";
+    private static final String COLOR_HTML_PROMPT = "colorhtml";
     private static final String HTML_FONT = "Courier New";
     private static final String HTML_OUTPUT_PATH = "out.html";
     private static final String ASCII_ART_PROMPT = "asciiart";
+    // change matching method constants
+    private static final String MATCH_PROMPT = "match";
+    private static final String EXACT_PROMPT = "exact";
+    private static final String QUANTIZED_PROMPT = "quantized";
+    private static final String SHAPE_PROMPT = "shape";
+    // change dithering constants
+    private static final String DITHER_PROMPT = "dither";
+    private static final String NO_DITHER_PROMPT = "none";
+    private static final String FLOYD_STEINBERG_PROMPT = "fs";
+    private static final String ORDERED_PROMPT = "ordered";
+    // pipeline metrics constants
+    private static final String STATS_PROMPT = "stats";
+    // render cache constants
+    private static final String CACHE_PROMPT = "cache";
+    private static final int RENDER_CACHE_CAPACITY = 16;
+    private static final String CACHE_STATS_FORMAT = "Render cache: %d hits, %d misses, %d entries%n";
     // Errors constants
     private static final String RESOLUTION_EXCEED_BOUNDS_EXCEPTION = "Did not change resolution due to " +
             "exceeding boundaries.";
     private static final String INCORRECT_FORMAT_EXCEPTION = "Did not %s due to incorrect format.";
     private static final String EXECUTE_FORMAT_EXCEPTION = "Did not execute due to %s ";
     private static final String IMAGE_PROMPT_EXCEPTION = "problem with image file.";
+    private static final String COLOR_EXCEPTION = "colors not available for this image.";
     private static final String OUTPUT_INCORRECT_FORMAT_EXCEPTION = "change output method";
+    private static final String MATCH_INCORRECT_FORMAT_EXCEPTION = "change matching method";
+    private static final String DITHER_INCORRECT_FORMAT_EXCEPTION = "change dithering";
     private static final String EMPTY_SET_EXCEPTION = "Did not Execute. Charset is empty.";
     private static final String INCORRECT_COMMAND_EXCEPTION = "incorrect command.";
 
@@ -66,8 +106,15 @@ public class Shell {
     private final SubImgCharMatcher subImgCharMatcher;
     private final ConsoleAsciiOutput consoleAsciiOutput;
     private final HtmlAsciiOutput htmlAsciiOutput;
+    private final AnsiAsciiOutput ansiAsciiOutput;
     private AsciiOutput outputDirectory;
+    // The colored output in use, or null when the output is monochrome.
+    private ColoredAsciiOutput coloredOutputDirectory;
     private int currResolution;
+    private DitherMode ditherMode;
+    private final RenderCache renderCache;
+    private final ImageProcessingCache imageCache;
+    private final PipelineStats pipelineStats;
 
 
     /**
@@ -76,13 +123,18 @@ public class Shell {
      * @throws IOException if the path to the image isn't correct.
      */
     public Shell() throws IOException {
-        this.imageToProcess = new ImageProcessing(new Image(DEFAULT_IMAGE_PATH));
+        this.imageCache = new ImageProcessingCache(IMAGE_CACHE_MAX_BYTES);
+        this.pipelineStats = new PipelineStats();
+        this.currResolution = DEFAULT_RESOLUTION;
+        imagePrompt(DEFAULT_IMAGE_PATH);
         this.subImgCharMatcher = new SubImgCharMatcher(DEFAULT_CHAR_SET);
         this.consoleAsciiOutput = new ConsoleAsciiOutput();
         this.htmlAsciiOutput = new HtmlAsciiOutput(HTML_OUTPUT_PATH, HTML_FONT);
+        this.ansiAsciiOutput = new AnsiAsciiOutput();
         this.outputDirectory = consoleAsciiOutput;
-        this.currResolution = DEFAULT_RESOLUTION;
-
+        this.coloredOutputDirectory = null;
+        this.ditherMode = DitherMode.NONE;
+        this.renderCache = new RenderCache(RENDER_CACHE_CAPACITY);
     }
 
     /**
@@ -90,22 +142,49 @@ public class Shell {
      */
     public void run() {
         System.out.print(INPUT_PROMPT);
-        String[] input = KeyboardInput.readLine().split(String.valueOf(SPACE));
+        while (processLine(KeyboardInput.readLine())) {
+            System.out.print(INPUT_PROMPT);
+        }
+    }
+
+    /**
+     * Executes the commands of a script without printing prompts, until an exit command or the end of the
+     * script. The output is flushed whenever all the commands available so far were executed, rather than
+     * after every line.
+     *
+     * @param script The commands, one in a line.
+     * @throws IOException If the script cannot be read.
+     */
+    public void runScript(BufferedReader script) throws IOException {
+        try {
+            String line = script.readLine();
+            while (line != null && processLine(line)) {
+                if (!script.ready()) {
+                    System.out.flush();
+                }
+                line = script.readLine();
+            }
+        } finally {
+            System.out.flush();
+        }
+    }
+
+    /*
+     * Executes a single command line. Returns false if it is the exit command. The line is trimmed, so script
+     * lines are parsed like the keyboard input.
+     */
+    private boolean processLine(String line) {
+        String[] input = line.trim().split(String.valueOf(SPACE));
         String inputPrompt = input[0].toLowerCase();
         String inputArg = "";
         if (input.length > 1) {
             inputArg = input[1].toLowerCase();
         }
-        while (!inputPrompt.equals(EXIT_PROMPT)) {
-            promptProcessing(inputPrompt, inputArg);
-            System.out.print(INPUT_PROMPT);
-            input = KeyboardInput.readLine().split(String.valueOf(SPACE));
-            inputPrompt = input[0].toLowerCase();
-            inputArg = "";
-            if (input.length > 1) {
-                inputArg = input[1].toLowerCase();
-            }
+        if (inputPrompt.equals(EXIT_PROMPT)) {
+            return false;
         }
+        promptProcessing(inputPrompt, inputArg);
+        return true;
     }
 
     /*
@@ -137,9 +216,22 @@ public class Shell {
             case OUT_PROMPT:
                 outputPrompt(inputArg);
                 break;
+            case MATCH_PROMPT:
+                matchPrompt(inputArg);
+                break;
+            case DITHER_PROMPT:
+                ditherPrompt(inputArg);
+                break;
             case ASCII_ART_PROMPT:
                 asciiArtPrompt();
                 break;
+            case STATS_PROMPT:
+                pipelineStats.print();
+                break;
+            case CACHE_PROMPT:
+                System.out.printf(CACHE_STATS_FORMAT, renderCache.getHits(), renderCache.getMisses(),
+                        renderCache.size());
+                break;
             default:
                 commandError();
             }
@@ -164,17 +256,13 @@ public class Shell {
         if (arg.length() == 1) {
             subImgCharMatcher.addChar(arg.charAt(0));
         } else if (arg.equals(ALL_PROMPT)) {
-            for (char c = SPACE; c <= TILDE; c++) {
-                subImgCharMatcher.addChar(c);
-            }
+            subImgCharMatcher.addChars(SPACE, TILDE);
         } else if (arg.equals(SPACE_PROMPT)) {
             subImgCharMatcher.addChar(SPACE);
         } else if (arg.length() == VALID_RANGE_INPUT && arg.charAt(1) == VALID_RANGE_SEPARATOR) {
             char startRange = (char)Math.min(arg.charAt(0), arg.charAt(2));
             char endRange = (char)Math.max(arg.charAt(0), arg.charAt(2));
-            for (char c = startRange; c <= endRange; c++) {
-                subImgCharMatcher.addChar(c);
-            }
+            subImgCharMatcher.addChars(startRange, endRange);
         } else {
             throw new IncorrectFormatException(ADD_PROMPT);
         }
@@ -187,47 +275,67 @@ public class Shell {
         if (arg.length() == 1) {
             subImgCharMatcher.removeChar(arg.charAt(0));
         } else if (arg.equals(ALL_PROMPT)) {
-            subImgCharMatcher.getCharSet().clear();
+            subImgCharMatcher.clear();
         } else if (arg.equals(SPACE_PROMPT)) {
             subImgCharMatcher.removeChar(SPACE);
         } else if (arg.length() == VALID_RANGE_INPUT && arg.charAt(1) == VALID_RANGE_SEPARATOR) {
             char startRange = (char) Math.min(arg.charAt(0), arg.charAt(2));
             char endRange = (char) Math.max(arg.charAt(0), arg.charAt(2));
-            for (char c = startRange; c <= endRange; c++) {
-                subImgCharMatcher.removeChar(c);
-            }
+            subImgCharMatcher.removeChars(startRange, endRange);
         } else {
             throw new IncorrectFormatException(REMOVE_PROMPT);
         }
     }
 
     /*
-     * Execute the res up/down prompt.
+     * Execute the res up/down prompt, or set the resolution to a given number of characters in a row. Up and
+     * down step to the available resolution closest to twice or half the current one, since a streamed image
+     * only has the levels of its pyramid.
      */
     private void changeResolutionPrompt(String arg) throws ExceedingBoundsException, IncorrectFormatException {
         if (arg.equals(RES_UP_PROMPT)) {
-            if (currResolution * CHANGE_RES_FACTOR > imageToProcess.getMaxCharsInRow()) {
+            int resolution = imageToProcess.getClosestResolution(currResolution * CHANGE_RES_FACTOR);
+            if (currResolution * CHANGE_RES_FACTOR > imageToProcess.getMaxCharsInRow() ||
+                    resolution <= currResolution || !imageToProcess.isResolutionAvailable(resolution)) {
                 throw new ExceedingBoundsException(RESOLUTION_EXCEED_BOUNDS_EXCEPTION);
             } else {
-                currResolution *= CHANGE_RES_FACTOR;
+                currResolution = resolution;
             }
         } else if (arg.equals(RES_DOWN_PROMPT)) {
-            if (currResolution / CHANGE_RES_FACTOR < imageToProcess.getMinCharsInRow()) {
+            int resolution = imageToProcess.getClosestResolution(currResolution / CHANGE_RES_FACTOR);
+            if (currResolution / CHANGE_RES_FACTOR < imageToProcess.getMinCharsInRow() ||
+                    resolution >= currResolution || !imageToProcess.isResolutionAvailable(resolution)) {
                 throw new ExceedingBoundsException(RESOLUTION_EXCEED_BOUNDS_EXCEPTION);
             } else {
-                currResolution /= CHANGE_RES_FACTOR;
+                currResolution = resolution;
             }
         } else {
-            throw new IncorrectFormatException(RESOLUTION_EXCEPTION_PROMPT);
+            int resolution;
+            try {
+                resolution = Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                throw new IncorrectFormatException(RESOLUTION_EXCEPTION_PROMPT);
+            }
+            if (!imageToProcess.isResolutionAvailable(resolution)) {
+                throw new ExceedingBoundsException(RESOLUTION_EXCEED_BOUNDS_EXCEPTION);
+            }
+            currResolution = resolution;
         }
         System.out.println(CHANGE_RES_PROMPT + currResolution);
     }
 
     /*
-     * Execute the image change prompt.
+     * Execute the image change prompt. Images used recently are taken from the image cache. If the new image
+     * does not support the current resolution, the resolution is set to the closest one it supports.
      */
     private void imagePrompt(String arg) throws IOException {
-        imageToProcess = new ImageProcessing(new Image(arg));
+        pipelineStats.startStage();
+        imageToProcess = imageCache.get(arg);
+        pipelineStats.endLoad();
+        if (!imageToProcess.isResolutionAvailable(currResolution)) {
+            currResolution = imageToProcess.getClosestResolution(currResolution);
+            System.out.println(CHANGE_RES_PROMPT + currResolution);
+        }
     }
 
     /*
@@ -236,23 +344,89 @@ public class Shell {
     private void outputPrompt(String arg) throws IncorrectFormatException {
         if (arg.equals(CONSOLE_PROMPT)) {
             outputDirectory = consoleAsciiOutput;
+            coloredOutputDirectory = null;
         } else if (arg.equals(HTML_PROMPT)) {
             outputDirectory = htmlAsciiOutput;
+            coloredOutputDirectory = null;
+        } else if (arg.equals(ANSI_PROMPT)) {
+            coloredOutputDirectory = ansiAsciiOutput;
+        } else if (arg.equals(COLOR_HTML_PROMPT)) {
+            coloredOutputDirectory = htmlAsciiOutput;
         } else {
             throw new IncorrectFormatException(OUTPUT_INCORRECT_FORMAT_EXCEPTION);
         }
     }
 
     /*
-     * execute the asciiArt prompt
+     * Execute the matching method change prompt.
+     */
+    private void matchPrompt(String arg) throws IncorrectFormatException {
+        if (arg.equals(EXACT_PROMPT)) {
+            subImgCharMatcher.setShapeMatching(false);
+            subImgCharMatcher.setQuantized(false);
+        } else if (arg.equals(QUANTIZED_PROMPT)) {
+            subImgCharMatcher.setShapeMatching(false);
+            subImgCharMatcher.setQuantized(true);
+        } else if (arg.equals(SHAPE_PROMPT)) {
+            subImgCharMatcher.setShapeMatching(true);
+        } else {
+            throw new IncorrectFormatException(MATCH_INCORRECT_FORMAT_EXCEPTION);
+        }
+    }
+
+    /*
+     * Execute the dithering change prompt.
      */
-    private void asciiArtPrompt() throws ExceedingBoundsException {
+    private void ditherPrompt(String arg) throws IncorrectFormatException {
+        if (arg.equals(NO_DITHER_PROMPT)) {
+            ditherMode = DitherMode.NONE;
+        } else if (arg.equals(FLOYD_STEINBERG_PROMPT)) {
+            ditherMode = DitherMode.FLOYD_STEINBERG;
+        } else if (arg.equals(ORDERED_PROMPT)) {
+            ditherMode = DitherMode.ORDERED;
+        } else {
+            throw new IncorrectFormatException(DITHER_INCORRECT_FORMAT_EXCEPTION);
+        }
+    }
+
+    /*
+     * execute the asciiArt prompt, reusing the last result of the same image, resolution and charset.
+     */
+    private void asciiArtPrompt() throws ExceedingBoundsException, ExecuteException {
         if (subImgCharMatcher.getCharSet().isEmpty()) {
             throw new ExceedingBoundsException(EMPTY_SET_EXCEPTION);
+        } else if (coloredOutputDirectory != null && !imageToProcess.isColorAvailable()) {
+            throw new ExecuteException(COLOR_EXCEPTION);
         } else {
-            AsciiArtAlgorithm asciiArtAlgorithm = new AsciiArtAlgorithm(imageToProcess, currResolution,
-                    subImgCharMatcher);
-            outputDirectory.out(asciiArtAlgorithm.run());
+            String fingerprint = subImgCharMatcher.getFingerprint();
+            char[][] asciiArt = renderCache.get(imageToProcess.getId(), currResolution, fingerprint, ditherMode);
+            boolean cached = asciiArt != null;
+            if (!cached) {
+                // The brightness is kept by the processed image, so the algorithm finds it ready.
+                pipelineStats.startStage();
+                imageToProcess.getSubImagesBrightnessArray(currResolution);
+                pipelineStats.endStage(PipelineStats.BRIGHTNESS_STAGE);
+                pipelineStats.startStage();
+                AsciiArtAlgorithm asciiArtAlgorithm = new AsciiArtAlgorithm(imageToProcess, currResolution,
+                        subImgCharMatcher, ditherMode);
+                asciiArt = asciiArtAlgorithm.run();
+                pipelineStats.endStage(PipelineStats.MATCH_STAGE);
+                renderCache.put(imageToProcess.getId(), currResolution, fingerprint, ditherMode, asciiArt);
+            }
+            if (coloredOutputDirectory != null) {
+                // The colors do not depend on the charset, and are kept by the processed image.
+                pipelineStats.startStage();
+                int[][] colors = new AsciiArtAlgorithm(imageToProcess, currResolution, subImgCharMatcher)
+                        .runColors();
+                pipelineStats.endStage(PipelineStats.COLOR_STAGE);
+                pipelineStats.startStage();
+                coloredOutputDirectory.out(asciiArt, colors);
+            } else {
+                pipelineStats.startStage();
+                outputDirectory.out(asciiArt);
+            }
+            pipelineStats.endStage(PipelineStats.OUTPUT_STAGE);
+            pipelineStats.endRun((long) asciiArt.length * currResolution, currResolution, cached);
         }
     }
 
@@ -263,12 +437,60 @@ public class Shell {
         throw new ExecuteException(INCORRECT_COMMAND_EXCEPTION);
     }
 
+    /**
+     * Appends the metrics of every following ascii art run as a JSON line to a file.
+     *
+     * @param filename The path of the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public void dumpStatsAsJsonLines(String filename) throws IOException {
+        pipelineStats.dumpJsonLines(filename);
+    }
+
     /**
      * The main method that runs the all program.
      *
-     * @param args None cmd arguments will bw used in this program.
+     * @param args None for the interactive shell. "--script" followed by the path of a script runs it
+     *             without prompts; the script is read from the standard input if no path is given.
+     *             "--stats-json" followed by a path appends the metrics of every run to it as JSON lines.
+     *             "--threads" followed by a number caps the threads that calculate the brightness.
      */
     public static void main(String[] args) throws IOException {
-            new Shell().run();
+        boolean script = false;
+        String scriptPath = null;
+        String statsPath = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals(SCRIPT_ARG)) {
+                script = true;
+                if (i + 1 < args.length && !args[i + 1].startsWith(ARG_PREFIX)) {
+                    scriptPath = args[++i];
+                }
+            } else if (args[i].equals(STATS_JSON_ARG) && i + 1 < args.length) {
+                statsPath = args[++i];
+            } else if (args[i].equals(THREADS_ARG) && i + 1 < args.length) {
+                try {
+                    ImageProcessing.setMaxParallelism(Integer.parseInt(args[++i]));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+        }
+        if (script) {
+            System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                    SCRIPT_OUTPUT_BUFFER_SIZE), false));
+        }
+        Shell shell = new Shell();
+        if (statsPath != null) {
+            shell.dumpStatsAsJsonLines(statsPath);
+        }
+        if (script) {
+            Reader source = scriptPath != null ? new FileReader(scriptPath) : new InputStreamReader(System.in);
+            try (BufferedReader scriptReader = new BufferedReader(source)) {
+                shell.runScript(scriptReader);
+            }
+        } else {
+            shell.run();
+        }
     }
 }
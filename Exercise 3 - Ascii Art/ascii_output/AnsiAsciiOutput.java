@@ -0,0 +1,54 @@
+package ascii_output;
+
+import java.io.PrintStream;
+
+/**
+ * Output a 2D array of chars to the console in 24-bit color, using ANSI escape sequences.
+ * A color sequence is only written where the color changes, so a run of chars of the same color costs a
+ * single sequence.
+ * @author Asaf Korman
+ */
+public class AnsiAsciiOutput implements ColoredAsciiOutput {
+
+    private static final String COLOR_FORMAT = "\u001b[38;2;%d;%d;%dm";
+    private static final String RESET = "\u001b[0m";
+    private static final int BYTE_MASK = 0xFF;
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int NO_COLOR = -1;
+
+    // The stream written instead of the console, or null.
+    private final PrintStream stream;
+
+    public AnsiAsciiOutput() {
+        this(null);
+    }
+
+    /**
+     * Writes to the given stream instead of the console.
+     */
+    public AnsiAsciiOutput(PrintStream stream) {
+        this.stream = stream;
+    }
+
+    @Override
+    public void out(char[][] chars, int[][] colors) {
+        PrintStream out = stream != null ? stream : System.out;
+        StringBuilder row = new StringBuilder();
+        for (int y = 0; y < chars.length; y++) {
+            row.setLength(0);
+            int currColor = NO_COLOR;
+            for (int x = 0; x < chars[y].length; x++) {
+                int color = colors[y][x];
+                if (color != currColor) {
+                    row.append(String.format(COLOR_FORMAT, (color >> RED_SHIFT) & BYTE_MASK,
+                            (color >> GREEN_SHIFT) & BYTE_MASK, color & BYTE_MASK));
+                    currColor = color;
+                }
+                row.append(chars[y][x]).append(' ');
+            }
+            row.append(RESET);
+            out.println(row);
+        }
+    }
+}
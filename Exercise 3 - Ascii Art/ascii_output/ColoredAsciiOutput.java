@@ -0,0 +1,14 @@
+package ascii_output;
+
+/**
+ * An object implementing this interface can output a 2D array of chars
+ * in some fashion, drawing every char in its own color.
+ * @author Asaf Korman
+ */
+public interface ColoredAsciiOutput {
+    /**
+     * Output the specified 2D array of chars, where colors[y][x] is the
+     * color of chars[y][x] as 0xRRGGBB
+     */
+    void out(char[][] chars, int[][] colors);
+}
@@ -6,11 +6,13 @@ package ascii_output;
  */public class ConsoleAsciiOutput implements AsciiOutput{
     @Override
     public void out(char[][] chars) {
+        StringBuilder row = new StringBuilder();
         for (int y = 0; y < chars.length ; y++) {
+            row.setLength(0);
             for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
+                row.append(chars[y][x]).append(' ');
             }
-            System.out.println();
+            System.out.println(row);
         }
     }
 }
@@ -1,32 +1,118 @@
 package ascii_output;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Output a 2D array of chars to an HTML file viewable in a web browser.
+ * The file (or a stream, such as an HTTP response) is written in UTF-8, row after row, and may be gzip
+ * compressed.
+ * Colored chars are wrapped in a span per run of the same color.
  * @author Dan Nirel
  */
-public class HtmlAsciiOutput implements AsciiOutput {
+public class HtmlAsciiOutput implements AsciiOutput, StreamingAsciiOutput, ColoredAsciiOutput {
     private static final double BASE_LINE_SPACING = 0.8;
     private static final double BASE_FONT_SIZE = 150.0;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    // The HTML representation of every ASCII char that has to be escaped, null for the others.
+    private static final char[][] ESCAPES = new char[128][];
+    private static final int MAX_ESCAPE_LENGTH = 5;
+    private static final char[] SPAN_START = "<span style=\"color:#".toCharArray();
+    private static final char[] SPAN_START_END = "\">".toCharArray();
+    private static final char[] SPAN_END = "</span>".toCharArray();
+    private static final int HEX_COLOR_LENGTH = 6;
+    private static final int MAX_SPAN_LENGTH = SPAN_START.length + HEX_COLOR_LENGTH + SPAN_START_END.length +
+            SPAN_END.length;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int HEX_DIGIT_BITS = 4;
+    private static final int HEX_DIGIT_MASK = 0xF;
+    private static final String STREAM_NAME = "the output stream";
+
+    static {
+        ESCAPES['<'] = "&lt;".toCharArray();
+        ESCAPES['>'] = "&gt;".toCharArray();
+        ESCAPES['&'] = "&amp;".toCharArray();
+    }
 
     private final String fontName;
     private final String filename;
+    // The stream written instead of the file, or null.
+    private final OutputStream output;
+    private final boolean gzip;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer byteBuffer;
+    private char[] rowBuffer;
+    private WritableByteChannel channel;
+    // Whether the current (or last) output failed to be written.
+    private boolean failed;
 
     public HtmlAsciiOutput(String filename, String fontName) {
+        this(filename, fontName, false);
+    }
+
+    public HtmlAsciiOutput(String filename, String fontName, boolean gzip) {
+        this(filename, null, fontName, gzip);
+    }
+
+    /**
+     * Writes a single output to the given stream, and closes the stream at its end.
+     */
+    public HtmlAsciiOutput(OutputStream output, String fontName, boolean gzip) {
+        this(STREAM_NAME, output, fontName, gzip);
+    }
+
+    private HtmlAsciiOutput(String filename, OutputStream output, String fontName, boolean gzip) {
         this.fontName = fontName;
         this.filename = filename;
+        this.output = output;
+        this.gzip = gzip;
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.rowBuffer = new char[0];
     }
 
     @Override
     public void out(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            writer.write(String.format(
+        begin(chars[0].length);
+        for (char[] row : chars) {
+            outRow(row);
+        }
+        end();
+    }
+
+    @Override
+    public void begin(int width) {
+        failed = false;
+        try {
+            WritableByteChannel target = output != null ? Channels.newChannel(output) :
+                    FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            channel = gzip ? Channels.newChannel(
+                    new GZIPOutputStream(Channels.newOutputStream(target), BUFFER_SIZE)) : target;
+            encoder.reset();
+            byteBuffer.clear();
+            write(String.format(
                 "<!DOCTYPE html>\n"+
                 "<html>\n"+
+                "<head>\n"+
+                "<meta charset=\"utf-8\">\n"+
+                "</head>\n"+
                 "<body style=\""+
                     "\tCOLOR:#000000;"+
                     "\tTEXT-ALIGN:center;"+
@@ -37,27 +123,172 @@ public class HtmlAsciiOutput implements AsciiOutput {
                     "\tFONT-SIZE:%frem;"+
                     "\tLETTER-SPACING:0.15em;"+
                     "\tLINE-HEIGHT:%fem;\">\n",
-                    fontName, BASE_FONT_SIZE/chars[0].length, BASE_LINE_SPACING));
-
-            for(int y = 0 ; y < chars.length ; y++) {
-                for (int x = 0; x < chars[y].length ; x++) {
-                    String htmlRep;
-                    switch(chars[y][x]) {
-                        case '<': htmlRep = "&lt;";  break;
-                        case '>': htmlRep = "&gt;";  break;
-                        case '&': htmlRep = "&amp;"; break;
-                        default:  htmlRep = String.valueOf(chars[y][x]);
-                    }
-                    writer.write(htmlRep);
+                    fontName, BASE_FONT_SIZE/width, BASE_LINE_SPACING));
+        } catch(IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void outRow(char[] row) {
+        if (channel == null) {
+            return;
+        }
+        ensureRowBuffer(row.length * MAX_ESCAPE_LENGTH + LINE_SEPARATOR.length());
+        int length = 0;
+        for (char c : row) {
+            length = appendEscaped(c, length);
+        }
+        writeRowBuffer(length);
+    }
+
+    @Override
+    public void out(char[][] chars, int[][] colors) {
+        begin(chars[0].length);
+        for (int y = 0; y < chars.length && channel != null; y++) {
+            outColoredRow(chars[y], colors[y]);
+        }
+        end();
+    }
+
+    /*
+     * Writes a row, opening a new span wherever the color changes.
+     */
+    private void outColoredRow(char[] row, int[] colors) {
+        ensureRowBuffer(row.length * (MAX_ESCAPE_LENGTH + MAX_SPAN_LENGTH) + LINE_SEPARATOR.length());
+        int length = 0;
+        for (int x = 0; x < row.length; x++) {
+            if (x == 0 || colors[x] != colors[x - 1]) {
+                if (x > 0) {
+                    length = append(SPAN_END, length);
                 }
-                writer.newLine();
+                length = append(SPAN_START, length);
+                for (int shift = (HEX_COLOR_LENGTH - 1) * HEX_DIGIT_BITS; shift >= 0; shift -= HEX_DIGIT_BITS) {
+                    rowBuffer[length++] = HEX_DIGITS[(colors[x] >> shift) & HEX_DIGIT_MASK];
+                }
+                length = append(SPAN_START_END, length);
             }
-            writer.write(
+            length = appendEscaped(row[x], length);
+        }
+        if (row.length > 0) {
+            length = append(SPAN_END, length);
+        }
+        writeRowBuffer(length);
+    }
+
+    /*
+     * Makes sure the row buffer holds at least the given number of chars.
+     */
+    private void ensureRowBuffer(int maxLength) {
+        if (rowBuffer.length < maxLength) {
+            rowBuffer = new char[maxLength];
+        }
+    }
+
+    /*
+     * Appends the HTML representation of a char to the row buffer, and returns the new length.
+     */
+    private int appendEscaped(char c, int length) {
+        char[] escape = c < ESCAPES.length ? ESCAPES[c] : null;
+        if (escape == null) {
+            rowBuffer[length] = c;
+            return length + 1;
+        }
+        return append(escape, length);
+    }
+
+    /*
+     * Appends chars to the row buffer, and returns the new length.
+     */
+    private int append(char[] chars, int length) {
+        System.arraycopy(chars, 0, rowBuffer, length, chars.length);
+        return length + chars.length;
+    }
+
+    /*
+     * Ends the row in the row buffer and writes it.
+     */
+    private void writeRowBuffer(int length) {
+        LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), rowBuffer, length);
+        length += LINE_SEPARATOR.length();
+        try {
+            encode(CharBuffer.wrap(rowBuffer, 0, length), false);
+        } catch(IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void end() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            write(
                 "</p>\n"+
                 "</body>\n"+
                 "</html>\n");
+            encode(CharBuffer.allocate(0), true);
+            while (encoder.flush(byteBuffer) == CoderResult.OVERFLOW) {
+                drain();
+            }
+            drain();
+            channel.close();
+            channel = null;
         } catch(IOException e) {
-            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+            fail();
+        }
+    }
+
+    /**
+     * Checks whether the last output failed to be written. The failure was already logged.
+     *
+     * @return True if writing the last output failed, false otherwise.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /*
+     * Encodes a string into the byte buffer.
+     */
+    private void write(String text) throws IOException {
+        encode(CharBuffer.wrap(text), false);
+    }
+
+    /*
+     * Encodes chars into the byte buffer, writing the buffer to the file whenever it is full.
+     */
+    private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+        while (encoder.encode(chars, byteBuffer, endOfInput) == CoderResult.OVERFLOW) {
+            drain();
+        }
+    }
+
+    /*
+     * Writes the content of the byte buffer to the file.
+     */
+    private void drain() throws IOException {
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+        byteBuffer.clear();
+    }
+
+    /*
+     * Reports a failure to write, and drops the rest of the current output.
+     */
+    private void fail() {
+        failed = true;
+        Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // The failure was already reported.
+            }
+            channel = null;
         }
     }
 }
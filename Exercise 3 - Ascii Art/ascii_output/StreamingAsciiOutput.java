@@ -0,0 +1,23 @@
+package ascii_output;
+
+/**
+ * An object implementing this interface can output a 2D array of chars
+ * one row at a time, as the rows are produced.
+ * @author Asaf Korman
+ */
+public interface StreamingAsciiOutput {
+    /**
+     * Start a new output whose rows all have the specified number of chars
+     */
+    void begin(int width);
+
+    /**
+     * Output the next row. The array may be reused by the caller once this returns
+     */
+    void outRow(char[] row);
+
+    /**
+     * Finish the output started by the last call to begin
+     */
+    void end();
+}
@@ -0,0 +1,71 @@
+package ascii_output;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Output a 2D array of chars to a plain text file (or a stream, in UTF-8), laid out like the console output.
+ * @author Asaf Korman
+ */
+public class TextAsciiOutput implements AsciiOutput {
+
+    private static final String STREAM_NAME = "the output stream";
+
+    private final String filename;
+    // The stream written instead of the file, or null.
+    private final OutputStream output;
+    // Whether the last output failed to be written.
+    private boolean failed;
+
+    public TextAsciiOutput(String filename) {
+        this.filename = filename;
+        this.output = null;
+    }
+
+    /**
+     * Writes a single output to the given stream, and closes the stream at its end.
+     */
+    public TextAsciiOutput(OutputStream output) {
+        this.filename = STREAM_NAME;
+        this.output = output;
+    }
+
+    @Override
+    public void out(char[][] chars) {
+        failed = false;
+        try (BufferedWriter writer = new BufferedWriter(openWriter())) {
+            for (int y = 0; y < chars.length; y++) {
+                for (int x = 0; x < chars[y].length; x++) {
+                    writer.write(chars[y][x]);
+                    writer.write(' ');
+                }
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            failed = true;
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        }
+    }
+
+    /**
+     * Checks whether the last output failed to be written. The failure was already logged.
+     *
+     * @return True if writing the last output failed, false otherwise.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /*
+     * Opens the file, or wraps the stream.
+     */
+    private Writer openWriter() throws IOException {
+        return output != null ? new OutputStreamWriter(output, StandardCharsets.UTF_8) : new FileWriter(filename);
+    }
+}
@@ -0,0 +1,106 @@
+package benchmark;
+
+import image.Image;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how long it takes to load an image from disk, comparing the per-pixel decode loop the Image
+ * class used to have with its current bulk raster decode. The inputs are synthetic multi-megapixel images
+ * written to a temporary directory, so no assets are needed.
+ *
+ * @author Asaf Korman
+ */
+public class ImageLoadBenchmark {
+
+    private static final int[][] IMAGE_SIZES = {{2048, 1536}, {4000, 3000}, {7680, 4320}};
+    private static final String[] FORMATS = {"jpeg", "png"};
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final double NANOS_IN_MILLI = 1e6;
+    private static final String TEMP_PREFIX = "ascii_art_bench";
+    private static final String HEADER = "%-6s %-11s %12s %12s %8s%n";
+    private static final String ROW = "%-6s %-11s %12.1f %12.1f %7.2fx%n";
+
+    /**
+     * Runs the benchmark and prints the average load time of each decode path.
+     *
+     * @param args None cmd arguments will be used in this program.
+     * @throws IOException If the temporary images cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        System.out.printf(HEADER, "format", "size", "legacy(ms)", "bulk(ms)", "speedup");
+        for (String format : FORMATS) {
+            for (int[] size : IMAGE_SIZES) {
+                File file = writeSyntheticImage(size[0], size[1], format);
+                try {
+                    double legacyMillis = measure(() -> legacyLoad(file.getPath()));
+                    double bulkMillis = measure(() -> new Image(file.getPath()));
+                    System.out.printf(ROW, format, size[0] + "x" + size[1], legacyMillis, bulkMillis,
+                            legacyMillis / bulkMillis);
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /*
+     * A loading task that may fail reading the file.
+     */
+    private interface LoadTask {
+        Object load() throws IOException;
+    }
+
+    /*
+     * Returns the average wall time of the task in milliseconds, after warming it up.
+     */
+    private static double measure(LoadTask task) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.load();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            task.load();
+        }
+        return (System.nanoTime() - start) / NANOS_IN_MILLI / MEASURED_ROUNDS;
+    }
+
+    /*
+     * The decode loop Image(String) used before: one getRGB() call and one Color per pixel.
+     */
+    private static Color[][] legacyLoad(String filename) throws IOException {
+        BufferedImage im = ImageIO.read(new File(filename));
+        Color[][] pixels = new Color[im.getHeight()][im.getWidth()];
+        for (int i = 0; i < im.getHeight(); i++) {
+            for (int j = 0; j < im.getWidth(); j++) {
+                pixels[i][j] = new Color(im.getRGB(j, i));
+            }
+        }
+        return pixels;
+    }
+
+    /*
+     * Writes a gradient image with some noise so the encoder cannot compress it away.
+     */
+    private static File writeSyntheticImage(int width, int height, String format) throws IOException {
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = (x * 31 + y * 17) & 0xFF;
+                row[x] = red << 16 | green << 8 | blue;
+            }
+            im.setRGB(0, y, width, 1, row, 0, width);
+        }
+        File file = File.createTempFile(TEMP_PREFIX, "." + format);
+        ImageIO.write(im, format, file);
+        return file;
+    }
+}
@@ -0,0 +1,307 @@
+package benchmark;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import image.Image;
+import image.ImageProcessing;
+import image_char_matching.SubImgCharMatcher;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Measures every stage of the ascii art pipeline over a grid of image sizes, resolutions and charset sizes:
+ * decoding, preparing the summed-area table, the brightness of the sub-images, matching, the whole
+ * algorithm, and both outputs. The inputs are synthetic images generated in memory (and written to a
+ * temporary file for the decode stage only), so no assets are needed.
+ * Every benchmark is warmed up before it is measured, and its setup is not part of the measured time. Pass
+ * the names of benchmarks as arguments to run only them.
+ *
+ * @author Asaf Korman
+ */
+public class PipelineBenchmark {
+
+    private static final int[][] IMAGE_SIZES = {{640, 480}, {1920, 1080}, {4000, 3000}};
+    private static final int[] RESOLUTIONS = {64, 256, 600};
+    private static final int[] CHARSET_SIZES = {10, 26, 95};
+    private static final char FIRST_CHAR = ' ';
+    private static final char LAST_CHAR = '~';
+    private static final long SEED = 42;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final double NANOS_IN_MILLI = 1e6;
+    private static final String TEMP_PREFIX = "ascii_art_bench";
+    private static final String IMAGE_FORMAT = "png";
+    private static final String HTML_FONT = "Courier New";
+    private static final String HEADER = "%-12s %-11s %6s %8s %12s %12s%n";
+    private static final String ROW = "%-12s %-11s %6s %8s %12.3f %12.3f%n";
+    private static final String NOT_APPLICABLE = "-";
+
+    private static final String DECODE = "decode";
+    private static final String PREPARE = "prepare";
+    private static final String BRIGHTNESS = "brightness";
+    private static final String MATCH = "match";
+    private static final String MATCH_QUANTIZED = "matchQuant";
+    private static final String MATCH_SHAPE = "matchShape";
+    private static final String ALGORITHM = "algorithm";
+    private static final String CONSOLE = "console";
+    private static final String HTML = "html";
+
+    // Keeps the results of the measured code alive, so the JIT cannot drop it.
+    private static volatile long sink;
+
+    /*
+     * A measured operation, with a setup that is not measured.
+     */
+    private interface Benchmark {
+
+        /*
+         * Prepares the inputs of a single measured call.
+         */
+        default void setup() throws IOException {
+        }
+
+        /*
+         * The measured call.
+         */
+        Object run() throws IOException;
+    }
+
+    /**
+     * Runs the benchmarks and prints the average and the best time of each one.
+     *
+     * @param args The names of the benchmarks to run, or none to run all of them.
+     * @throws IOException If the temporary files cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        System.out.printf(HEADER, "benchmark", "size", "res", "charset", "avg(ms)", "best(ms)");
+        for (int[] size : IMAGE_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            String sizeName = width + "x" + height;
+            BufferedImage bufferedImage = createSyntheticImage(width, height);
+            Image image = toImage(bufferedImage);
+            if (isSelected(args, DECODE)) {
+                File file = File.createTempFile(TEMP_PREFIX, "." + IMAGE_FORMAT);
+                try {
+                    ImageIO.write(bufferedImage, IMAGE_FORMAT, file);
+                    report(DECODE, sizeName, NOT_APPLICABLE, NOT_APPLICABLE, () -> new Image(file.getPath()));
+                } finally {
+                    file.delete();
+                }
+            }
+            if (isSelected(args, PREPARE)) {
+                report(PREPARE, sizeName, NOT_APPLICABLE, NOT_APPLICABLE, () -> new ImageProcessing(image));
+            }
+            ImageProcessing prepared = new ImageProcessing(image);
+            for (int resolution : RESOLUTIONS) {
+                if (resolution > width) {
+                    continue;
+                }
+                runResolution(args, image, prepared, sizeName, resolution);
+            }
+        }
+    }
+
+    /*
+     * Runs the benchmarks of a single image size and resolution.
+     */
+    private static void runResolution(String[] args, Image image, ImageProcessing prepared, String sizeName,
+                                      int resolution) throws IOException {
+        String res = String.valueOf(resolution);
+        if (isSelected(args, BRIGHTNESS)) {
+            // A fresh image every call, so the brightness is never taken from its pyramid.
+            ImageProcessing[] fresh = new ImageProcessing[1];
+            report(BRIGHTNESS, sizeName, res, NOT_APPLICABLE, new Benchmark() {
+                @Override
+                public void setup() {
+                    fresh[0] = new ImageProcessing(image);
+                }
+
+                @Override
+                public Object run() {
+                    return fresh[0].getSubImagesBrightnessArray(resolution);
+                }
+            });
+        }
+        double[] brightness = prepared.getSubImagesBrightnessArray(resolution);
+        long[] shapes = isSelected(args, MATCH_SHAPE) ? prepared.getSubImagesShapeArray(resolution) : null;
+        for (int charsetSize : CHARSET_SIZES) {
+            String charset = String.valueOf(charsetSize);
+            SubImgCharMatcher matcher = new SubImgCharMatcher(createCharset(charsetSize));
+            if (isSelected(args, MATCH)) {
+                report(MATCH, sizeName, res, charset, () -> matchAll(matcher, brightness));
+            }
+            if (isSelected(args, MATCH_QUANTIZED)) {
+                SubImgCharMatcher quantized = new SubImgCharMatcher(createCharset(charsetSize));
+                quantized.setQuantized(true);
+                report(MATCH_QUANTIZED, sizeName, res, charset, () -> matchAll(quantized, brightness));
+            }
+            if (isSelected(args, MATCH_SHAPE)) {
+                SubImgCharMatcher shape = new SubImgCharMatcher(createCharset(charsetSize));
+                shape.setShapeMatching(true);
+                report(MATCH_SHAPE, sizeName, res, charset, () -> matchAllShapes(shape, brightness, shapes));
+            }
+            if (isSelected(args, ALGORITHM)) {
+                // From the decoded image to the ascii art: the summed-area table, the brightness and matching.
+                report(ALGORITHM, sizeName, res, charset,
+                        () -> new AsciiArtAlgorithm(new ImageProcessing(image), resolution, matcher).run());
+            }
+            char[][] asciiArt = new AsciiArtAlgorithm(prepared, resolution, matcher).run();
+            if (isSelected(args, CONSOLE)) {
+                PrintStream console = System.out;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                double[] times;
+                try {
+                    times = measure(() -> {
+                        new ConsoleAsciiOutput().out(asciiArt);
+                        return asciiArt;
+                    });
+                } finally {
+                    System.setOut(console);
+                }
+                printRow(CONSOLE, sizeName, res, charset, times);
+            }
+            if (isSelected(args, HTML)) {
+                File file = File.createTempFile(TEMP_PREFIX, "." + HTML);
+                try {
+                    HtmlAsciiOutput output = new HtmlAsciiOutput(file.getPath(), HTML_FONT);
+                    report(HTML, sizeName, res, charset, () -> {
+                        output.out(asciiArt);
+                        return asciiArt;
+                    });
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /*
+     * Matches every brightness value, and returns a checksum of the characters.
+     */
+    private static long matchAll(SubImgCharMatcher matcher, double[] brightness) {
+        long checksum = 0;
+        for (double value : brightness) {
+            checksum += matcher.getCharByImageBrightness(value);
+        }
+        return checksum;
+    }
+
+    /*
+     * Matches every sub-image by its shape and brightness, and returns a checksum of the characters.
+     */
+    private static long matchAllShapes(SubImgCharMatcher matcher, double[] brightness, long[] shapes) {
+        long checksum = 0;
+        for (int i = 0; i < brightness.length; i++) {
+            checksum += matcher.getCharByShape(shapes[i], brightness[i]);
+        }
+        return checksum;
+    }
+
+    /*
+     * Measures a benchmark and prints its row.
+     */
+    private static void report(String name, String size, String resolution, String charset, Benchmark benchmark)
+            throws IOException {
+        printRow(name, size, resolution, charset, measure(benchmark));
+    }
+
+    /*
+     * Prints the average and the best time of a benchmark.
+     */
+    private static void printRow(String name, String size, String resolution, String charset, double[] times) {
+        System.out.printf(ROW, name, size, resolution, charset, times[0], times[1]);
+    }
+
+    /*
+     * Returns the average and the best wall time of the benchmark in milliseconds, after warming it up.
+     */
+    private static double[] measure(Benchmark benchmark) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            benchmark.setup();
+            consume(benchmark.run());
+        }
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            benchmark.setup();
+            long start = System.nanoTime();
+            Object result = benchmark.run();
+            long nanos = System.nanoTime() - start;
+            consume(result);
+            total += nanos;
+            best = Math.min(best, nanos);
+        }
+        return new double[]{total / NANOS_IN_MILLI / MEASURED_ROUNDS, best / NANOS_IN_MILLI};
+    }
+
+    /*
+     * Keeps a result alive.
+     */
+    private static void consume(Object result) {
+        sink += System.identityHashCode(result);
+    }
+
+    /*
+     * Checks whether a benchmark was asked for.
+     */
+    private static boolean isSelected(String[] args, String name) {
+        if (args.length == 0) {
+            return true;
+        }
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the first printable ASCII characters, spread over the whole range.
+     */
+    private static char[] createCharset(int size) {
+        char[] charset = new char[size];
+        int range = LAST_CHAR - FIRST_CHAR + 1;
+        for (int i = 0; i < size; i++) {
+            charset[i] = (char) (FIRST_CHAR + (long) i * range / size);
+        }
+        return charset;
+    }
+
+    /*
+     * Generates a gradient image with some noise, so neither the encoder nor the matcher sees flat areas.
+     */
+    private static BufferedImage createSyntheticImage(int width, int height) {
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(SEED);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = random.nextInt(256);
+                row[x] = red << 16 | green << 8 | blue;
+            }
+            im.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return im;
+    }
+
+    /*
+     * Wraps the pixels of a generated image without going through a file.
+     */
+    private static Image toImage(BufferedImage bufferedImage) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        int[] pixels = bufferedImage.getRGB(0, 0, width, height, null, 0, width);
+        return new Image(pixels, width, height);
+    }
+}
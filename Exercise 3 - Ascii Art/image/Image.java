@@ -1,10 +1,18 @@
 package image;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * A package-private class of the package image.
@@ -12,7 +20,15 @@ import java.io.IOException;
  */
 public class Image {
 
-    private final Color[][] pixelArray;
+    private static final int STRIP_ROWS = 64;
+    private static final int OPAQUE = 0xFF000000;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int BGR_PIXEL_STRIDE = 3;
+
+    // Packed ARGB values, row after row.
+    private final int[] pixelArray;
     private final int width;
     private final int height;
 
@@ -26,14 +42,72 @@ public class Image {
         BufferedImage im = ImageIO.read(new File(filename));
         width = im.getWidth();
         height = im.getHeight();
+        pixelArray = readPixels(im, width, height);
+    }
 
+    /**
+     * Constructor. Create an instance from the encoded content of an image, such as an upload. The content is
+     * buffered in memory while it is decoded, never in a temporary file.
+     *
+     * @param input The content of the image. Not closed.
+     * @throws IOException If the content cannot be read or its format is not supported.
+     */
+    public Image(InputStream input) throws IOException {
+        ImageInputStream stream = new MemoryCacheImageInputStream(input);
+        // ImageIO closes the stream once it decoded an image; closing it leaves the input open.
+        BufferedImage im = ImageIO.read(stream);
+        if (im == null) {
+            stream.close();
+            throw new IOException("Unsupported image format");
+        }
+        width = im.getWidth();
+        height = im.getHeight();
+        pixelArray = readPixels(im, width, height);
+    }
 
-        pixelArray = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                pixelArray[i][j]=new Color(im.getRGB(j, i));
+    /*
+     * Reads all the pixels of the decoded image into a packed ARGB array. The common layouts that ImageIO
+     * produces are copied straight out of the raster's DataBuffer, the rest go through getRGB in strips.
+     */
+    private static int[] readPixels(BufferedImage im, int width, int height) {
+        int[] pixels = new int[height * width];
+        Raster raster = im.getRaster();
+        boolean untranslated = raster.getSampleModelTranslateX() == 0 &&
+                raster.getSampleModelTranslateY() == 0;
+        switch (im.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+            if (untranslated && raster.getDataBuffer().getOffset() == 0 &&
+                    ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                // getRGB() reports pixels without an alpha channel as opaque.
+                int alpha = im.getType() == BufferedImage.TYPE_INT_RGB ? OPAQUE : 0;
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = data[i] | alpha;
+                }
+                return pixels;
+            }
+            break;
+        case BufferedImage.TYPE_3BYTE_BGR:
+            if (untranslated && raster.getDataBuffer().getOffset() == 0 &&
+                    ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride() ==
+                            width * BGR_PIXEL_STRIDE) {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                for (int i = 0, j = 0; i < pixels.length; i++, j += BGR_PIXEL_STRIDE) {
+                    pixels[i] = OPAQUE | (data[j + 2] & BYTE_MASK) << RED_SHIFT |
+                            (data[j + 1] & BYTE_MASK) << GREEN_SHIFT | (data[j] & BYTE_MASK);
+                }
+                return pixels;
             }
+            break;
+        default:
+            break;
         }
+        for (int y = 0; y < height; y += STRIP_ROWS) {
+            int rows = Math.min(STRIP_ROWS, height - y);
+            im.getRGB(0, y, width, rows, pixels, y * width, width);
+        }
+        return pixels;
     }
 
     /**
@@ -44,6 +118,24 @@ public class Image {
      * @param height
      */
     public Image(Color[][] pixelArray, int width, int height) {
+        this.pixelArray = new int[height * width];
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                this.pixelArray[i * width + j] = pixelArray[i][j].getRGB();
+            }
+        }
+    }
+
+    /**
+     * Constructor. create instance from a given packed ARGB array, without copying it.
+     *
+     * @param pixelArray The ARGB values of the pixels, row after row.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    public Image(int[] pixelArray, int width, int height) {
         this.pixelArray = pixelArray;
         this.width = width;
         this.height = height;
@@ -75,7 +167,25 @@ public class Image {
      * @return The pixel located in the (x, y) coordinate.
      */
     public Color getPixel(int x, int y) {
-        return pixelArray[x][y];
+        return new Color(getRGB(x, y));
+    }
+
+    /**
+     * Getter.
+     *
+     * @param x X coordinate of the given pixel.
+     * @param y Y coordinate of the given pixel.
+     * @return The ARGB value of the pixel located in the (x, y) coordinate.
+     */
+    public int getRGB(int x, int y) {
+        return pixelArray[x * width + y];
+    }
+
+    /*
+     * Returns the packed ARGB array backing the image, row after row. Not a copy.
+     */
+    int[] getPixelArray() {
+        return pixelArray;
     }
 
     /**
@@ -84,15 +194,8 @@ public class Image {
      * @param fileName Path to the image.
      */
     public void saveImage(String fileName){
-        // Initialize BufferedImage, assuming Color[][] is already properly populated.
-        BufferedImage bufferedImage = new BufferedImage(pixelArray[0].length, pixelArray.length,
-                BufferedImage.TYPE_INT_RGB);
-        // Set each pixel of the BufferedImage to the color from the Color[][].
-        for (int x = 0; x < pixelArray.length; x++) {
-            for (int y = 0; y < pixelArray[x].length; y++) {
-                bufferedImage.setRGB(y, x, pixelArray[x][y].getRGB());
-            }
-        }
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, width, height, pixelArray, 0, width);
         File outputfile = new File(fileName+".jpeg");
         try {
             ImageIO.write(bufferedImage, "jpeg", outputfile);
@@ -1,6 +1,15 @@
 package image;
 
 import java.awt.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Responsible for processing and preparing the image to the run of the AsciiArtAlgorithm.
@@ -10,19 +19,63 @@ import java.awt.*;
 public class ImageProcessing {
 
     private static final int DEFAULT_RESOLUTION = 128;
-    private static final double RED_TO_GRAY = 0.2126;
-    private static final double GREEN_TO_GRAY = 0.7152;
-    private static final double BLUE_TO_GRAY = 0.0722;
+    // The gray shade weights are kept as fixed-point integers (scaled by GRAY_SCALE) so the summed-area
+    // table holds exact sums.
+    private static final long RED_TO_GRAY = 2126;
+    private static final long GREEN_TO_GRAY = 7152;
+    private static final long BLUE_TO_GRAY = 722;
+    private static final double GRAY_SCALE = 10000;
     private static final double MAX_BRIGHT_VALUE = 255;
-    
-    private final Image image;
-    private double[] subImagesBrightnessArray;
+    // The padding color.
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final long WHITE_GRAY_SHADE = getGrayShade(WHITE);
+    private static final int BYTE_MASK = 0xFF;
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int[] CHANNEL_SHIFTS = {RED_SHIFT, GREEN_SHIFT, 0};
+    // Below this number of sub-images the brightness pass runs on the calling thread.
+    private static final int MIN_PARALLEL_SUB_IMAGES = 1 << 14;
+    // The smallest band of sub-image rows a single fork/join task handles, whatever the parallelism.
+    private static final int MIN_ROWS_PER_BAND = 4;
+    // A sub-image shape is SHAPE_SIDE x SHAPE_SIDE cells; a cell is part of the shape if it is brighter than
+    // the sub-image by at least MIN_SHAPE_CONTRAST.
+    private static final int SHAPE_SIDE = 8;
+    private static final double MIN_SHAPE_CONTRAST = 1.0 / 16;
+    // The number of resolutions outside the pyramid whose brightness is kept, and of resolutions whose colors
+    // and shapes are kept, the least recently used ones being dropped.
+    private static final int RECENT_RESOLUTIONS = 4;
+
+    // Images with more pixels than this are streamed from their file instead of loaded into memory.
+    private static final long STREAMING_MIN_PIXELS = 1 << 25;
+    private static final int STREAMING_MAX_CHARS_IN_ROW = 1024;
+    // Images given by their content, such as uploads, are always decoded into memory, and several may be
+    // decoded at once, so they are limited to far fewer pixels than a file.
+    private static final long MAX_CONTENT_PIXELS = 1 << 22;
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    // The pool the brightness passes run on. A pool that was replaced is not shut down, since a pass may
+    // still run on it; the pools of every capped parallelism are kept and reused instead.
+    private static volatile ForkJoinPool brightnessPool = ForkJoinPool.commonPool();
+    private static final Map<Integer, ForkJoinPool> CAPPED_POOLS = new HashMap<>();
+
+    private long[] luminanceTable;
+    // The packed ARGB pixels of an image in memory, which the colors are averaged from.
+    private int[] pixels;
+    // The brightness pyramid: the sums of the gray shades and the brightness of the sub-images of every
+    // power-of-two resolution that was calculated (or of every level of a streamed image), by resolution.
+    private final Map<Integer, long[]> levelSums;
+    private final Map<Integer, double[]> levelBrightness;
+    // The brightness of the sub-images of the last resolutions asked for outside the pyramid, by resolution.
+    private final Map<Integer, double[]> recentBrightness;
+    // The average color of the sub-images of the last resolutions asked for, by resolution.
+    private final Map<Integer, int[]> levelColors;
+    // The shape masks of the sub-images of the last resolutions asked for, by resolution.
+    private final Map<Integer, long[]> levelShapes;
     private final int width;
     private final int height;
-    private int resolution;
     private final int minCharsInRow;
     private final int maxCharsInRow;
-    private Color[][] pixelsArray;
+    private final long id;
 
     /**
      * Constructor.
@@ -30,109 +83,777 @@ public class ImageProcessing {
      * @param image The image it wil process.
      */
     public ImageProcessing(Image image) {
-        // Replace the height and width to be closest power of 2 of the original values.
-        this.height = (int)Math.pow(2, (int)Math.floor(Math.log(image.getHeight()) / Math.log(2)));
-        this.width = (int)Math.pow(2, (int)Math.floor(Math.log(image.getWidth()) / Math.log(2)));
-        this.image = imagePadding(image, image.getHeight(), image.getWidth());
+        this.id = NEXT_ID.getAndIncrement();
+        this.height = image.getHeight();
+        this.width = image.getWidth();
         this.maxCharsInRow = this.width;
         this.minCharsInRow = Math.max(1, width / height);
-        this.resolution = DEFAULT_RESOLUTION;
-        if (width >= resolution) {
-            splitToSubImages();
+        this.levelSums = new HashMap<>();
+        this.levelBrightness = new HashMap<>();
+        this.recentBrightness = recentResolutions();
+        this.levelColors = recentResolutions();
+        this.levelShapes = recentResolutions();
+        buildLuminanceTable(image);
+        if (width >= DEFAULT_RESOLUTION) {
+            buildPyramid(DEFAULT_RESOLUTION);
         }
     }
 
     /**
-     * Getter.
+     * Constructor. Streams the image from its file in strips instead of loading it, keeping only the
+     * brightness pyramid, so the memory needed does not depend on the size of the image. The finest level has
+     * square sub-images of a whole number of pixels, and every coarser level has sub-images twice as big;
+     * the last column and row of every level are padded with white. Only the levels of the pyramid are
+     * available.
+     *
+     * @param filename Path to the image.
+     * @param maxCharsInRow The maximal number of characters in a row of the finest level.
+     * @throws IOException If the path is invalid or the format is not supported.
+     */
+    public ImageProcessing(String filename, int maxCharsInRow) throws IOException {
+        this.id = NEXT_ID.getAndIncrement();
+        Dimension size = ImageStripStreamer.readDimensions(filename);
+        this.height = size.height;
+        this.width = size.width;
+        this.levelSums = new HashMap<>();
+        this.levelBrightness = new HashMap<>();
+        this.recentBrightness = recentResolutions();
+        this.levelColors = recentResolutions();
+        this.levelShapes = recentResolutions();
+        int subImageSize = ceilDiv(width, Math.min(width, maxCharsInRow));
+        int columns = ceilDiv(width, subImageSize);
+        long[] sums = ImageStripStreamer.sumSubImages(filename, width, height, subImageSize);
+        this.maxCharsInRow = columns;
+        putLevel(columns, sums, subImageSize);
+        // Halving the number of columns, rounded up, keeps the padding of every level below one sub-image.
+        int minColumns = Math.max(1, width / height);
+        while (columns > 1 && ceilDiv(columns, 2) >= minColumns) {
+            sums = mergeLevel(sums, columns, subImageSize);
+            columns = ceilDiv(columns, 2);
+            subImageSize *= 2;
+            putLevel(columns, sums, subImageSize);
+        }
+        this.minCharsInRow = columns;
+    }
+
+    /**
+     * Prepares the image in the given file, loading it into memory, or streaming it if it is too big.
+     *
+     * @param filename Path to the image.
+     * @return The processed image.
+     * @throws IOException If the path is invalid or the format is not supported.
+     */
+    public static ImageProcessing fromFile(String filename) throws IOException {
+        Dimension size = ImageStripStreamer.readDimensions(filename);
+        if ((long) size.width * size.height > STREAMING_MIN_PIXELS) {
+            return new ImageProcessing(filename, STREAMING_MAX_CHARS_IN_ROW);
+        }
+        return new ImageProcessing(new Image(filename));
+    }
+
+    /**
+     * Prepares an image from its encoded content, such as an upload. The content is always decoded into
+     * memory, so images of more than about 4 megapixels are rejected from their header before they are
+     * decoded.
+     *
+     * @param content The content of the image.
+     * @return The processed image.
+     * @throws IOException If the format is not supported or the image is too big.
+     */
+    public static ImageProcessing fromContent(byte[] content) throws IOException {
+        Dimension size = ImageStripStreamer.readDimensions(content);
+        if ((long) size.width * size.height > MAX_CONTENT_PIXELS) {
+            throw new IOException("Image too big to load: " + size.width + "x" + size.height);
+        }
+        return new ImageProcessing(new Image(new ByteArrayInputStream(content)));
+    }
+
+    /**
+     * Getter. The brightness of power-of-two resolutions is kept in the pyramid for the life of the object;
+     * that of any other resolution is calculated directly, and only kept for the last few of them.
+     *
+     * @param resolution The resolution according to which we will split our image to sub-images; any number
+     *                   of characters in a row between the minimum and the maximum.
+     * @return The data structure holds the sub-images and their brightness, row after row. Must not be
+     * modified.
+     */
+    public synchronized double[] getSubImagesBrightnessArray(int resolution) {
+        double[] brightness = levelBrightness.get(resolution);
+        if (brightness == null) {
+            brightness = recentBrightness.get(resolution);
+        }
+        if (brightness == null) {
+            if (Integer.bitCount(resolution) == 1) {
+                buildPyramid(resolution);
+                brightness = levelBrightness.get(resolution);
+            } else {
+                brightness = calculateBrightness(resolution);
+                recentBrightness.put(resolution, brightness);
+            }
+        }
+        return brightness;
+    }
+
+    /*
+     * Returns a map of the values of the last RECENT_RESOLUTIONS resolutions used, by resolution.
+     */
+    private static <T> Map<Integer, T> recentResolutions() {
+        return new LinkedHashMap<>(RECENT_RESOLUTIONS + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, T> eldest) {
+                return size() > RECENT_RESOLUTIONS;
+            }
+        };
+    }
+
+    /**
+     * Getter. The colors are averaged from the pixels in a single pass per resolution, over the same
+     * sub-images as the brightness: area-weighted edges, and white padding below the image. The colors of the
+     * last few resolutions are kept. Only available for an image in memory.
+     *
+     * @param resolution The resolution according to which we will split our image to sub-images.
+     * @return The average color of every sub-image as 0xRRGGBB, in the order of the brightness array. Must not
+     * be modified.
+     */
+    public synchronized int[] getSubImagesColorArray(int resolution) {
+        if (pixels == null) {
+            // A streamed image only has the brightness of its pyramid.
+            throw new IllegalArgumentException("Colors are not available for a streamed image");
+        }
+        int[] colors = levelColors.get(resolution);
+        if (colors == null) {
+            colors = averageColors(resolution);
+            levelColors.put(resolution, colors);
+        }
+        return colors;
+    }
+
+    /**
+     * Checks whether the average colors of the sub-images can be calculated.
+     *
+     * @return True if the image is in memory, false if it is streamed.
+     */
+    public boolean isColorAvailable() {
+        return pixels != null;
+    }
+
+    /**
+     * Getter. Every sub-image is divided to 8x8 cells, whose brightness is read from the summed-area table
+     * with area-weighted edges, so the shape is available at any resolution, even when a cell is smaller
+     * than a pixel. The shapes of the last few resolutions are kept. Only available for an image in memory.
      *
      * @param resolution The resolution according to which we will split our image to sub-images.
-     * @return The data structure holds the sub-images and their brightness.
+     * @return The shape mask of every sub-image, in the order of the brightness array: bit (row * 8 + col) is
+     * set if the cell is brighter than the whole sub-image by at least 1/16 of the maximal brightness; 0 for
+     * a sub-image without contrast. Must not be modified.
      */
-    public double[] getSubImagesBrightnessArray(int resolution) {
-        if (this.resolution != resolution) {
-            this.resolution = resolution;
-            splitToSubImages();
+    public synchronized long[] getSubImagesShapeArray(int resolution) {
+        if (luminanceTable == null) {
+            // A streamed image only has the brightness of its pyramid.
+            throw new IllegalArgumentException("Shapes are not available for a streamed image");
+        }
+        long[] shapes = levelShapes.get(resolution);
+        if (shapes == null) {
+            shapes = splitToShapes(resolution);
+            levelShapes.put(resolution, shapes);
+        }
+        return shapes;
+    }
+
+    /**
+     * Checks whether the shapes of the sub-images can be calculated.
+     *
+     * @return True if the image is in memory, false if it is streamed.
+     */
+    public boolean isShapeAvailable() {
+        return luminanceTable != null;
+    }
+
+    /**
+     * Returns the available resolution closest to the given one: the given one clamped to the minimum and the
+     * maximum for an image in memory, or the closest level of the pyramid (the lower one on a tie) for a
+     * streamed image.
+     *
+     * @param resolution The number of characters in a row.
+     * @return The closest available number of characters in a row.
+     */
+    public synchronized int getClosestResolution(int resolution) {
+        int clamped = Math.max(minCharsInRow, Math.min(maxCharsInRow, resolution));
+        if (luminanceTable != null) {
+            return clamped;
+        }
+        int closest = maxCharsInRow;
+        for (int level : levelBrightness.keySet()) {
+            long distance = Math.abs((long) level - resolution);
+            long closestDistance = Math.abs((long) closest - resolution);
+            if (distance < closestDistance || distance == closestDistance && level < closest) {
+                closest = level;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Checks whether the image can be split to the given number of characters in a row. An image in memory
+     * supports any resolution between the minimum and the maximum; a streamed one only the levels of its
+     * pyramid.
+     *
+     * @param resolution The number of characters in a row.
+     * @return True if the resolution is available, false otherwise.
+     */
+    public synchronized boolean isResolutionAvailable(int resolution) {
+        if (resolution < minCharsInRow || resolution > maxCharsInRow) {
+            return false;
+        }
+        return luminanceTable != null || levelBrightness.containsKey(resolution);
+    }
+
+    /*
+     * Calculates the brightness of a resolution outside the pyramid from the summed-area table, without
+     * keeping its sums.
+     */
+    private double[] calculateBrightness(int resolution) {
+        if (luminanceTable == null) {
+            throw new IllegalArgumentException("Resolution is not available: " + resolution);
+        }
+        if (width % resolution != 0) {
+            return splitToFractionalSubImages(resolution);
+        }
+        return toBrightness(splitToSubImages(resolution), width / resolution);
+    }
+
+    /*
+     * Adds the given power-of-two resolution to the brightness pyramid, together with every coarser level
+     * down to the minimum resolution, so stepping the resolution by powers of 2 is served from memory. The
+     * level is derived from the closest finer level that was already calculated, or else calculated from the
+     * summed-area table (if the image is in memory); every coarser level is derived from the level right
+     * above it, by adding the sums of each 2x2 sub-images.
+     * Only resolutions that divide the width have whole-pixel sub-images and sums to derive from; any other
+     * resolution is calculated directly from the summed-area table, with area-weighted edges.
+     * A streamed image has its whole pyramid from the start.
+     */
+    private void buildPyramid(int resolution) {
+        if (luminanceTable == null) {
+            throw new IllegalArgumentException("Resolution is not available: " + resolution);
+        }
+        if (width % resolution != 0) {
+            levelBrightness.put(resolution, splitToFractionalSubImages(resolution));
+            return;
+        }
+        int level = resolution;
+        long[] sums = levelSums.get(resolution);
+        for (int finer = resolution * 2; sums == null && finer <= maxCharsInRow && finer > 0; finer *= 2) {
+            if (levelSums.containsKey(finer)) {
+                level = finer;
+                sums = levelSums.get(finer);
+            }
+        }
+        if (sums == null) {
+            sums = splitToSubImages(resolution);
+            putLevel(resolution, sums, width / resolution);
+        }
+        while (level % 2 == 0 && level / 2 >= minCharsInRow && width % level == 0) {
+            int coarser = level / 2;
+            if (!levelSums.containsKey(coarser)) {
+                putLevel(coarser, mergeLevel(sums, level, width / level), width / coarser);
+            }
+            sums = levelSums.get(coarser);
+            level = coarser;
         }
-        return this.subImagesBrightnessArray;
     }
 
     /*
-     * Splits the image to sub-images according to the current resolution, calculate its brightness, and put
-     * holds it in a data structure.
+     * Adds a level to the pyramid, converting the sums of the gray shades of its sub-images, whose side is
+     * subImageSize pixels, to brightness values.
      */
-    private void splitToSubImages() {
-        int subImageSize = image.getWidth() / resolution;
-        // resolution * (image.getHeight() / subImageSize) = Number of sub-images.
-        subImagesBrightnessArray = new double[resolution * (image.getHeight() / subImageSize)]; // Holds the brightness value of the sub-image i that is in arr[i].
-        int index = 0;
-        for (int y = 0; y < image.getHeight(); y += subImageSize) {
-            for (int x = 0; x < image.getWidth(); x += subImageSize) {
-                Color[][] subImagePixels = new Color[subImageSize][subImageSize];
-                for (int i = 0; i < subImageSize; i++) {
-                    System.arraycopy(pixelsArray[y + i], x, subImagePixels[i], 0, subImageSize);
+    private void putLevel(int resolution, long[] sums, int subImageSize) {
+        levelSums.put(resolution, sums);
+        levelBrightness.put(resolution, toBrightness(sums, subImageSize));
+    }
+
+    /*
+     * Converts the sums of the gray shades of sub-images, whose side is subImageSize pixels, to brightness
+     * values.
+     */
+    private static double[] toBrightness(long[] sums, int subImageSize) {
+        double[] brightness = new double[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            // Normalize by the number of pixels in the sub-image and the maximum RGB (255).
+            brightness[i] = (sums[i] / GRAY_SCALE / (subImageSize * subImageSize)) / MAX_BRIGHT_VALUE;
+        }
+        return brightness;
+    }
+
+    /*
+     * Returns the sums of the level with half the resolution of the given one, rounded up, by adding the sums
+     * of each 2x2 sub-images. If the number of rows or columns is odd, the last row or column of the coarser
+     * level lies partly in the white padding, like in a direct split.
+     */
+    private static long[] mergeLevel(long[] sums, int columns, int subImageSize) {
+        int rows = sums.length / columns;
+        int coarserColumns = ceilDiv(columns, 2);
+        int coarserRows = ceilDiv(rows, 2);
+        long paddingSum = WHITE_GRAY_SHADE * subImageSize * subImageSize;
+        long[] coarserSums = new long[coarserColumns * coarserRows];
+        for (int row = 0; row < coarserRows; row++) {
+            int index = row * coarserColumns;
+            for (int col = 0; col < coarserColumns; col++) {
+                long sum = 0;
+                for (int y = 2 * row; y < 2 * row + 2; y++) {
+                    for (int x = 2 * col; x < 2 * col + 2; x++) {
+                        sum += y < rows && x < columns ? sums[y * columns + x] : paddingSum;
+                    }
                 }
-                subImagesBrightnessArray[index] = subImageBrightness(subImagePixels);
-                index++;
+                coarserSums[index + col] = sum;
+            }
+        }
+        return coarserSums;
+    }
+
+    /*
+     * Returns the quotient of two positive numbers, rounded up.
+     */
+    private static int ceilDiv(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /*
+     * Builds the summed-area table of the gray shades, so that luminanceTable[y * (width + 1) + x] holds the
+     * sum of all the pixels above and to the left of (x, y). Built once per image, in a single pass; the
+     * packed pixels are kept for the colors.
+     */
+    private void buildLuminanceTable(Image image) {
+        pixels = image.getPixelArray();
+        int stride = width + 1;
+        luminanceTable = new long[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            long rowSum = 0;
+            int prevRow = y * stride;
+            int currRow = prevRow + stride;
+            int pixelRow = y * width;
+            for (int x = 0; x < width; x++) {
+                rowSum += getGrayShade(pixels[pixelRow + x]);
+                luminanceTable[currRow + x + 1] = luminanceTable[prevRow + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /*
+     * Returns the sum of the gray shades of all the pixels above and to the left of (x, y), where x is in
+     * [0, width]. The image is padded below with white pixels so that the last row of sub-images is whole.
+     * The padding is virtual: pixels below the image take the gray shade of white, and no padded copy is made.
+     */
+    private long luminanceSum(int x, int y) {
+        if (y > height) {
+            return luminanceTable[height * (width + 1) + x] + (y - height) * (long) x * WHITE_GRAY_SHADE;
+        }
+        return luminanceTable[y * (width + 1) + x];
+    }
+
+    /*
+     * Returns the sum of the gray shades above and to the left of the point (x, y) with fractional
+     * coordinates, where x is in [0, width]. A pixel that the rectangle covers only partly is weighted by the
+     * covered area, which is exactly a bilinear interpolation of the summed-area table.
+     */
+    private double luminanceSum(double x, double y) {
+        int left = (int) x;
+        int top = (int) y;
+        double xFraction = x - left;
+        double yFraction = y - top;
+        long topLeft = luminanceSum(left, top);
+        double sum = topLeft;
+        if (xFraction > 0) {
+            sum += xFraction * (luminanceSum(left + 1, top) - topLeft);
+        }
+        if (yFraction > 0) {
+            long bottomLeft = luminanceSum(left, top + 1);
+            sum += yFraction * (bottomLeft - topLeft);
+            if (xFraction > 0) {
+                sum += xFraction * yFraction *
+                        (luminanceSum(left + 1, top + 1) - bottomLeft - luminanceSum(left + 1, top) + topLeft);
             }
         }
+        return sum;
+    }
+
+    /*
+     * Returns the number of rows of sub-images in the given resolution. The last row may lie partly in the
+     * white padding.
+     */
+    private int rowCount(int resolution) {
+        return (int) (((long) height * resolution + width - 1) / width);
     }
 
     /*
-     * Pads the image with white pixels so that the dimensions of the image are a power of 2.
+     * Splits the image to sub-images according to the given resolution, calculates the sum of the gray
+     * shades of each one, and returns them in a data structure. Every sub-image costs four lookups in the
+     * summed-area table. Large outputs are split into bands of rows on the brightness pool; each value is
+     * computed the same way in both cases, so the result does not depend on the parallelism.
      */
-    private Image imagePadding(Image image, int prevHeight, int prevWidth) {
-        pixelsArray = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                if (i < prevHeight && j < prevWidth) {
-                    pixelsArray[i][j] = image.getPixel(i, j);
+    private long[] splitToSubImages(int resolution) {
+        int subImageSize = width / resolution;
+        int rows = rowCount(resolution);
+        // resolution * rows = Number of sub-images.
+        long[] sums = new long[resolution * rows]; // Holds the gray shades sum of the sub-image i in arr[i].
+        splitInBands(rows, resolution, (firstRow, lastRow) ->
+                splitRowsToSubImages(sums, firstRow, lastRow, subImageSize));
+        return sums;
+    }
+
+    /*
+     * Splits the image to sub-images whose side is not a whole number of pixels, and calculates the
+     * brightness of each one from its area-weighted sum of gray shades.
+     */
+    private double[] splitToFractionalSubImages(int resolution) {
+        double subImageSize = (double) width / resolution;
+        int rows = rowCount(resolution);
+        double[] brightness = new double[resolution * rows];
+        splitInBands(rows, resolution, (firstRow, lastRow) -> {
+            int index = firstRow * resolution;
+            for (int row = firstRow; row < lastRow; row++) {
+                double top = (double) row * width / resolution;
+                double bottom = (double) (row + 1) * width / resolution;
+                for (int col = 0; col < resolution; col++) {
+                    double left = (double) col * width / resolution;
+                    double right = (double) (col + 1) * width / resolution;
+                    double sum = luminanceSum(right, bottom) - luminanceSum(left, bottom) -
+                            luminanceSum(right, top) + luminanceSum(left, top);
+                    // Normalize by the area of the sub-image and the maximum RGB (255).
+                    brightness[index] = (sum / GRAY_SCALE / (subImageSize * subImageSize)) / MAX_BRIGHT_VALUE;
+                    index++;
                 }
-                else {
-                    pixelsArray[i][j] = Color.WHITE;
+            }
+        });
+        return brightness;
+    }
+
+    /*
+     * Calculates the shape mask of every sub-image. The summed-area table is read once at every corner of
+     * the grid of cells of a row of sub-images, and the sum of every cell is the difference of its corners.
+     */
+    private long[] splitToShapes(int resolution) {
+        int rows = rowCount(resolution);
+        long[] shapes = new long[resolution * rows];
+        int columns = resolution * SHAPE_SIDE;
+        double cellSize = (double) width / columns;
+        double minContrast = MIN_SHAPE_CONTRAST * GRAY_SCALE * MAX_BRIGHT_VALUE * cellSize * cellSize;
+        // The pixel column and the fraction of the next pixel of every vertical line of the grid.
+        int[] lineLeft = new int[columns + 1];
+        double[] lineFraction = new double[columns + 1];
+        for (int col = 0; col <= columns; col++) {
+            double x = (double) col * width / columns;
+            lineLeft[col] = Math.min((int) x, width - 1);
+            lineFraction[col] = x - lineLeft[col];
+        }
+        splitInBands(rows, resolution, (firstRow, lastRow) -> {
+            double[] upperLine = new double[columns + 1];
+            double[] lowerLine = new double[columns + 1];
+            double[] cellSums = new double[SHAPE_SIDE * columns];
+            fillGridLine(upperLine, firstRow * SHAPE_SIDE, columns, lineLeft, lineFraction);
+            for (int row = firstRow; row < lastRow; row++) {
+                for (int cellRow = 0; cellRow < SHAPE_SIDE; cellRow++) {
+                    fillGridLine(lowerLine, row * SHAPE_SIDE + cellRow + 1, columns, lineLeft, lineFraction);
+                    int index = cellRow * columns;
+                    for (int col = 0; col < columns; col++) {
+                        cellSums[index + col] = lowerLine[col + 1] - lowerLine[col] - upperLine[col + 1] +
+                                upperLine[col];
+                    }
+                    double[] swap = upperLine;
+                    upperLine = lowerLine;
+                    lowerLine = swap;
+                }
+                for (int col = 0; col < resolution; col++) {
+                    shapes[row * resolution + col] = shapeMask(cellSums, columns, col * SHAPE_SIDE, minContrast);
+                }
+            }
+        });
+        return shapes;
+    }
+
+    /*
+     * Returns the shape mask of the sub-image whose cells start at the given column of the cell sums.
+     */
+    private static long shapeMask(double[] cellSums, int columns, int firstCell, double minContrast) {
+        double mean = 0;
+        for (int cellRow = 0; cellRow < SHAPE_SIDE; cellRow++) {
+            for (int cell = 0; cell < SHAPE_SIDE; cell++) {
+                mean += cellSums[cellRow * columns + firstCell + cell];
+            }
+        }
+        double threshold = mean / (SHAPE_SIDE * SHAPE_SIDE) + minContrast;
+        long shape = 0;
+        for (int cellRow = 0; cellRow < SHAPE_SIDE; cellRow++) {
+            for (int cell = 0; cell < SHAPE_SIDE; cell++) {
+                if (cellSums[cellRow * columns + firstCell + cell] > threshold) {
+                    shape |= 1L << (cellRow * SHAPE_SIDE + cell);
                 }
             }
         }
-        return new Image(pixelsArray, width, height);
+        return shape;
     }
 
     /*
-     * Returns the gray shade of a given pixel.
+     * Fills the values of the summed-area table at every corner of a horizontal line of the grid of cells,
+     * interpolating between the two rows of the table around the line like luminanceSum(double, double).
      */
-    private static double getGrayShade(Color pixel) {
-        return pixel.getRed() * RED_TO_GRAY + pixel.getGreen() * GREEN_TO_GRAY +
-                pixel.getBlue() * BLUE_TO_GRAY;
+    private void fillGridLine(double[] line, int gridRow, int columns, int[] lineLeft, double[] lineFraction) {
+        double y = (double) gridRow * width / columns;
+        int top = (int) y;
+        double yFraction = y - top;
+        if (top + 1 > height) {
+            for (int col = 0; col <= columns; col++) {
+                line[col] = luminanceSum((double) col * width / columns, y);
+            }
+            return;
+        }
+        int stride = width + 1;
+        int topRow = top * stride;
+        int bottomRow = topRow + stride;
+        for (int col = 0; col <= columns; col++) {
+            int left = lineLeft[col];
+            double xFraction = lineFraction[col];
+            double topValue = luminanceTable[topRow + left] +
+                    xFraction * (luminanceTable[topRow + left + 1] - luminanceTable[topRow + left]);
+            double bottomValue = luminanceTable[bottomRow + left] +
+                    xFraction * (luminanceTable[bottomRow + left + 1] - luminanceTable[bottomRow + left]);
+            line[col] = topValue + yFraction * (bottomValue - topValue);
+        }
+    }
+
+    /*
+     * Calculates the average color of every sub-image. A sub-image covers the same area as for its
+     * brightness, so the pixels it covers only partly are weighted by the covered area, and the white padding
+     * is part of the average. Every pixel is read once, or up to four times on the edges of sub-images.
+     */
+    private int[] averageColors(int resolution) {
+        int rows = rowCount(resolution);
+        int[] colors = new int[resolution * rows];
+        double subImageSize = (double) width / resolution;
+        double area = subImageSize * subImageSize;
+        int channels = CHANNEL_SHIFTS.length;
+        PixelSpan[] columnSpans = new PixelSpan[resolution];
+        for (int col = 0; col < resolution; col++) {
+            columnSpans[col] = new PixelSpan((double) col * width / resolution,
+                    (double) (col + 1) * width / resolution);
+        }
+        splitInBands(rows, resolution, (firstRow, lastRow) -> {
+            double[] sums = new double[resolution * channels];
+            for (int row = firstRow; row < lastRow; row++) {
+                Arrays.fill(sums, 0);
+                PixelSpan rowSpan = new PixelSpan((double) row * width / resolution,
+                        (double) (row + 1) * width / resolution);
+                for (int i = 0; i < rowSpan.count; i++) {
+                    for (int y = rowSpan.starts[i]; y < rowSpan.ends[i]; y++) {
+                        addPixelRow(sums, y, rowSpan.weights[i], columnSpans, subImageSize);
+                    }
+                }
+                int index = row * resolution;
+                for (int col = 0; col < resolution; col++) {
+                    int color = 0;
+                    for (int channel = 0; channel < channels; channel++) {
+                        int average = (int) Math.min(BYTE_MASK, Math.round(sums[col * channels + channel] / area));
+                        color |= average << CHANNEL_SHIFTS[channel];
+                    }
+                    colors[index + col] = color;
+                }
+            }
+        });
+        return colors;
+    }
+
+    /*
+     * Adds a row of pixels, weighted by the part of it that the row of sub-images covers, to the channel sums
+     * of every sub-image of the row. The rows below the image are white padding.
+     */
+    private void addPixelRow(double[] sums, int y, double rowWeight, PixelSpan[] columnSpans,
+                             double subImageSize) {
+        if (y >= height) {
+            double padding = rowWeight * subImageSize * BYTE_MASK;
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += padding;
+            }
+            return;
+        }
+        int channels = CHANNEL_SHIFTS.length;
+        int pixelRow = y * width;
+        for (int col = 0; col < columnSpans.length; col++) {
+            PixelSpan span = columnSpans[col];
+            for (int run = 0; run < span.count; run++) {
+                long red = 0;
+                long green = 0;
+                long blue = 0;
+                for (int x = span.starts[run]; x < span.ends[run]; x++) {
+                    int pixel = pixels[pixelRow + x];
+                    red += (pixel >> RED_SHIFT) & BYTE_MASK;
+                    green += (pixel >> GREEN_SHIFT) & BYTE_MASK;
+                    blue += pixel & BYTE_MASK;
+                }
+                double weight = rowWeight * span.weights[run];
+                sums[col * channels] += weight * red;
+                sums[col * channels + 1] += weight * green;
+                sums[col * channels + 2] += weight * blue;
+            }
+        }
     }
 
     /*
-     * Calculate and returns the brightness of image.
+     * The pixels that a fractional interval covers, as at most three runs of whole pixels with the same
+     * coverage: the partly covered first pixel, the fully covered pixels, and the partly covered last pixel.
      */
-    private static double subImageBrightness(Color[][] pixels) {
-        double sumGrayShades = 0;
-        for (Color[] pixel : pixels) {
-            for (int j = 0; j < pixels.length; j++) {
-                sumGrayShades += getGrayShade(pixel[j]);
+    private static class PixelSpan {
+
+        private static final int MAX_RUNS = 3;
+
+        private final int[] starts = new int[MAX_RUNS];
+        private final int[] ends = new int[MAX_RUNS];
+        private final double[] weights = new double[MAX_RUNS];
+        private int count;
+
+        PixelSpan(double start, double end) {
+            int first = (int) start;
+            int last = (int) end;
+            if (first == last) {
+                addRun(first, first + 1, end - start);
+                return;
+            }
+            int firstWhole = first;
+            if (start > first) {
+                addRun(first, first + 1, first + 1 - start);
+                firstWhole++;
+            }
+            if (last > firstWhole) {
+                addRun(firstWhole, last, 1);
+            }
+            if (end > last) {
+                addRun(last, last + 1, end - last);
             }
         }
-        // Normalize by the number of pixels in the sub-image and the maximum RGB (255).
-        return (sumGrayShades / (pixels.length * pixels[0].length)) / MAX_BRIGHT_VALUE;
+
+        private void addRun(int start, int end, double weight) {
+            starts[count] = start;
+            ends[count] = end;
+            weights[count] = weight;
+            count++;
+        }
+    }
+
+    /*
+     * Calculates the rows of sub-images on the calling thread, or in bands of rows on the brightness pool for
+     * large outputs.
+     */
+    private void splitInBands(int rows, int resolution, RowRangeTask task) {
+        ForkJoinPool pool = brightnessPool;
+        if ((long) rows * resolution < MIN_PARALLEL_SUB_IMAGES || pool.getParallelism() == 1) {
+            task.compute(0, rows);
+        } else {
+            int minRowsPerBand = Math.max(MIN_ROWS_PER_BAND,
+                    MIN_PARALLEL_SUB_IMAGES / pool.getParallelism() / resolution);
+            pool.invoke(new BrightnessBand(task, 0, rows, minRowsPerBand));
+        }
+    }
+
+    /*
+     * Calculates the sub-images of a range of rows.
+     */
+    private interface RowRangeTask {
+        void compute(int firstRow, int lastRow);
+    }
+
+    /*
+     * Calculates the sums of the gray shades of the sub-images in the rows [firstRow, lastRow).
+     */
+    private void splitRowsToSubImages(long[] sums, int firstRow, int lastRow, int subImageSize) {
+        int index = firstRow * (width / subImageSize);
+        for (int row = firstRow; row < lastRow; row++) {
+            int y = row * subImageSize;
+            for (int x = 0; x < width; x += subImageSize) {
+                sums[index] = subImageSum(x, y, subImageSize);
+                index++;
+            }
+        }
+    }
+
+    /*
+     * A band of sub-image rows, halved recursively until it is small enough to compute directly.
+     */
+    private static class BrightnessBand extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RowRangeTask task;
+        private final int firstRow;
+        private final int lastRow;
+        private final int minRowsPerBand;
+
+        BrightnessBand(RowRangeTask task, int firstRow, int lastRow, int minRowsPerBand) {
+            this.task = task;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.minRowsPerBand = minRowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow <= minRowsPerBand) {
+                task.compute(firstRow, lastRow);
+                return;
+            }
+            int middleRow = (firstRow + lastRow) >>> 1;
+            invokeAll(new BrightnessBand(task, firstRow, middleRow, minRowsPerBand),
+                    new BrightnessBand(task, middleRow, lastRow, minRowsPerBand));
+        }
+    }
+
+    /**
+     * Caps the number of threads used to calculate the brightness of the sub-images, for all the images.
+     * By default, the common fork/join pool is used.
+     *
+     * @param maxParallelism The maximum number of threads. 1 calculates on the calling thread only.
+     */
+    public static synchronized void setMaxParallelism(int maxParallelism) {
+        if (maxParallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + maxParallelism);
+        }
+        if (maxParallelism >= ForkJoinPool.commonPool().getParallelism()) {
+            brightnessPool = ForkJoinPool.commonPool();
+        } else {
+            // The threads of a pool that is no longer used end once they are idle.
+            brightnessPool = CAPPED_POOLS.computeIfAbsent(maxParallelism, ForkJoinPool::new);
+        }
+    }
+
+    /*
+     * Returns the gray shade of a given ARGB pixel, scaled by GRAY_SCALE.
+     */
+    static long getGrayShade(int pixel) {
+        return ((pixel >> RED_SHIFT) & BYTE_MASK) * RED_TO_GRAY + ((pixel >> GREEN_SHIFT) & BYTE_MASK) *
+                GREEN_TO_GRAY + (pixel & BYTE_MASK) * BLUE_TO_GRAY;
+    }
+
+    /*
+     * Calculate and returns the sum of the gray shades of the square sub-image whose top left corner is (x, y).
+     */
+    private long subImageSum(int x, int y, int subImageSize) {
+        return luminanceSum(x + subImageSize, y + subImageSize) - luminanceSum(x, y + subImageSize)
+                - luminanceSum(x + subImageSize, y) + luminanceSum(x, y);
     }
 
     /**
      * Getter.
      *
-     * @return The height of the image after the padding.
+     * @return The height of the image.
      */
     public int getHeight() {
-        return image.getHeight();
+        return height;
     }
 
     /**
      * Getter.
      *
-     * @return The width of the image after the padding.
+     * @return The width of the image.
      */
     public int getWidth() {
-        return image.getWidth();
+        return width;
     }
 
     /**
@@ -152,4 +873,41 @@ public class ImageProcessing {
     public int getMaxCharsInRow() {
         return maxCharsInRow;
     }
+
+    /**
+     * Getter.
+     *
+     * @return A number that identifies this processed image, unique in the running program.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /*
+     * Returns the number of bytes of the arrays the processed image holds in memory: the summed-area table and
+     * the packed pixels of an image in memory, and the sums, the brightness, the colors and the shapes of
+     * every level it keeps.
+     */
+    synchronized long getRetainedBytes() {
+        long retained = 0;
+        if (luminanceTable != null) {
+            retained += (long) luminanceTable.length * Long.BYTES + (long) pixels.length * Integer.BYTES;
+        }
+        for (long[] sums : levelSums.values()) {
+            retained += (long) sums.length * Long.BYTES;
+        }
+        for (double[] brightness : levelBrightness.values()) {
+            retained += (long) brightness.length * Double.BYTES;
+        }
+        for (double[] brightness : recentBrightness.values()) {
+            retained += (long) brightness.length * Double.BYTES;
+        }
+        for (int[] colors : levelColors.values()) {
+            retained += (long) colors.length * Integer.BYTES;
+        }
+        for (long[] shapes : levelShapes.values()) {
+            retained += (long) shapes.length * Long.BYTES;
+        }
+        return retained;
+    }
 }
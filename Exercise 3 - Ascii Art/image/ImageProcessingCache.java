@@ -0,0 +1,231 @@
+package image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A cache of decoded and prepared images (or streamed ones, for very big images), evicting the least
+ * recently used ones once the total number of bytes they hold exceeds a budget. A cached image keeps the
+ * levels it calculates for the resolutions it is rendered at, so the images are measured again whenever the
+ * cache is used. An image is identified by
+ * the canonical path of its file together with the modification time and size of the file, so an image that
+ * changed on disk is loaded again. An image given by its content, such as an upload, is identified by the
+ * SHA-256 digest of the content instead. An image that is being loaded is loaded once: the other requests for
+ * it wait for the same load.
+ *
+ * @author Asaf Korman
+ */
+public class ImageProcessingCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String DIGEST_FORMAT = "%064x";
+    private static final String CONTENT_PREFIX = "sha-256:";
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, ImageProcessing> images;
+    // The images being loaded, completed once they are loaded or fail to load.
+    private final Map<Key, CompletableFuture<ImageProcessing>> loading;
+
+    /*
+     * Identifies a version of an image file.
+     */
+    private static final class Key {
+
+        // The canonical path of the file, or the digest of the content prefixed by CONTENT_PREFIX, which no
+        // canonical path starts with.
+        private final String identity;
+        private final long lastModified;
+        private final long length;
+
+        Key(File file) throws IOException {
+            this.identity = file.getCanonicalPath();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        Key(byte[] content) {
+            this.identity = CONTENT_PREFIX + digest(content);
+            this.lastModified = 0;
+            this.length = content.length;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return identity.equals(otherKey.identity) && lastModified == otherKey.lastModified &&
+                    length == otherKey.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identity, lastModified, length);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes The maximal total number of bytes the cached images hold.
+     */
+    public ImageProcessingCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.images = new LinkedHashMap<>(16, 0.75f, true);
+        this.loading = new HashMap<>();
+    }
+
+    /*
+     * Loads an image that is not in the cache.
+     */
+    private interface Loader {
+        ImageProcessing load() throws IOException;
+    }
+
+    /**
+     * Returns the prepared image of the given file, loading it if it is not in the cache.
+     *
+     * @param filename Path to the image.
+     * @return The prepared image.
+     * @throws IOException If the path is invalid.
+     */
+    public ImageProcessing get(String filename) throws IOException {
+        return get(new Key(new File(filename)), () -> ImageProcessing.fromFile(filename));
+    }
+
+    /**
+     * Returns the prepared image of the given content, decoding it if no image with the same content is in
+     * the cache.
+     *
+     * @param content The content of the image, such as an upload.
+     * @return The prepared image.
+     * @throws IOException If the format is not supported or the image is too big to load.
+     */
+    public ImageProcessing get(byte[] content) throws IOException {
+        return get(new Key(content), () -> ImageProcessing.fromContent(content));
+    }
+
+    /*
+     * Returns the cached image of the key, or waits for the load of the image if it is already being loaded,
+     * or loads it otherwise.
+     */
+    private ImageProcessing get(Key key, Loader loader) throws IOException {
+        CompletableFuture<ImageProcessing> pending;
+        boolean loads;
+        synchronized (this) {
+            ImageProcessing cached = images.get(key);
+            if (cached != null) {
+                evict();
+                return cached;
+            }
+            pending = loading.get(key);
+            loads = pending == null;
+            if (loads) {
+                pending = new CompletableFuture<>();
+                loading.put(key, pending);
+            }
+        }
+        return loads ? load(key, loader, pending) : await(pending);
+    }
+
+    /*
+     * Loads an image, caches it, and hands it (or the failure to load it) to the requests waiting for it.
+     */
+    private ImageProcessing load(Key key, Loader loader, CompletableFuture<ImageProcessing> pending)
+            throws IOException {
+        try {
+            ImageProcessing image = loader.load();
+            put(key, image);
+            pending.complete(image);
+            return image;
+        } catch (IOException | RuntimeException | Error e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+            }
+        }
+    }
+
+    /*
+     * Waits for the load of an image by another request, and fails the way it failed.
+     */
+    private static ImageProcessing await(CompletableFuture<ImageProcessing> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the image to load");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /*
+     * Returns the SHA-256 digest of the content in hexadecimal.
+     */
+    private static String digest(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(content);
+            return String.format(DIGEST_FORMAT, new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform implements SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Adds an image to the cache and evicts the least recently used images until the cache fits its budget.
+     * An image bigger than the whole budget is not cached.
+     */
+    private synchronized void put(Key key, ImageProcessing image) {
+        if (image.getRetainedBytes() > maxBytes) {
+            return;
+        }
+        images.put(key, image);
+        evict();
+    }
+
+    /*
+     * Measures the cached images, and evicts the least recently used ones until the cache fits its budget.
+     */
+    private synchronized void evict() {
+        long cachedBytes = 0;
+        for (ImageProcessing image : images.values()) {
+            cachedBytes += image.getRetainedBytes();
+        }
+        Iterator<Map.Entry<Key, ImageProcessing>> eldest = images.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().getRetainedBytes();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of images in the cache.
+     */
+    public synchronized int size() {
+        return images.size();
+    }
+}
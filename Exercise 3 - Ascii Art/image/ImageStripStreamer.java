@@ -0,0 +1,154 @@
+package image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads an image file in horizontal strips and reduces each strip straight into the sums of the gray shades
+ * of its sub-images, so the whole picture is never held in memory. Peak memory is one strip, whatever the
+ * size of the image.
+ *
+ * @author Asaf Korman
+ */
+class ImageStripStreamer {
+
+    // A strip holds at most this many pixels (16MB of ARGB values), but never less than one row of sub-images.
+    private static final long MAX_STRIP_PIXELS = 1 << 22;
+    private static final int WHITE = 0xFFFFFFFF;
+
+    private ImageStripStreamer() {
+    }
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding its pixels.
+     *
+     * @param filename Path to the image.
+     * @return The width and the height of the image.
+     * @throws IOException If the path is invalid or the format is not supported.
+     */
+    static Dimension readDimensions(String filename) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(filename))) {
+            return readDimensions(input, filename);
+        }
+    }
+
+    /**
+     * Reads the dimensions of an image from the header of its content, without decoding its pixels.
+     *
+     * @param content The content of the image.
+     * @return The width and the height of the image.
+     * @throws IOException If the format is not supported.
+     */
+    static Dimension readDimensions(byte[] content) throws IOException {
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(content))) {
+            return readDimensions(input, "image content");
+        }
+    }
+
+    /*
+     * Reads the dimensions of the image in the stream.
+     */
+    private static Dimension readDimensions(ImageInputStream input, String name) throws IOException {
+        ImageReader reader = getReader(input, name);
+        try {
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Sums the gray shades of the square sub-images of a whole image. The sub-images of the last column and
+     * row may extend beyond the image; the part outside it is padded with white.
+     *
+     * @param filename Path to the image.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param subImageSize The size of the side of every sub-image.
+     * @return The sums of the sub-images, row after row.
+     * @throws IOException If the path is invalid or the format is not supported.
+     */
+    static long[] sumSubImages(String filename, int width, int height, int subImageSize) throws IOException {
+        int columns = (width + subImageSize - 1) / subImageSize;
+        int rows = (height + subImageSize - 1) / subImageSize;
+        long[] sums = new long[columns * rows];
+        int rowsPerStrip = (int) Math.max(1, MAX_STRIP_PIXELS / ((long) width * subImageSize));
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(filename))) {
+            ImageReader reader = getReader(input, filename);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                int[] pixelRow = new int[width];
+                for (int firstRow = 0; firstRow < rows; firstRow += rowsPerStrip) {
+                    int top = firstRow * subImageSize;
+                    int stripHeight = Math.min(rowsPerStrip * subImageSize, height - top);
+                    param.setSourceRegion(new Rectangle(0, top, width, stripHeight));
+                    BufferedImage strip = reader.read(0, param);
+                    sumStrip(strip, pixelRow, subImageSize, sums, firstRow * columns, columns);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        addPadding(sums, width, height, subImageSize, columns);
+        return sums;
+    }
+
+    /*
+     * Adds the gray shades of every pixel of the strip to the sum of its sub-image, reading the strip one
+     * pixel row at a time into the given buffer.
+     */
+    private static void sumStrip(BufferedImage strip, int[] pixelRow, int subImageSize, long[] sums,
+                                 int firstIndex, int columns) {
+        int width = pixelRow.length;
+        for (int y = 0; y < strip.getHeight(); y++) {
+            strip.getRGB(0, y, width, 1, pixelRow, 0, width);
+            int index = firstIndex + (y / subImageSize) * columns;
+            for (int col = 0; col < columns; col++) {
+                long sum = 0;
+                int x = col * subImageSize;
+                for (int end = Math.min(x + subImageSize, width); x < end; x++) {
+                    sum += ImageProcessing.getGrayShade(pixelRow[x]);
+                }
+                sums[index + col] += sum;
+            }
+        }
+    }
+
+    /*
+     * Adds the gray shade of white for every pixel of the sub-images of the last column and row that lies
+     * outside the image.
+     */
+    private static void addPadding(long[] sums, int width, int height, int subImageSize, int columns) {
+        long white = ImageProcessing.getGrayShade(WHITE);
+        for (int i = 0; i < sums.length; i++) {
+            int coveredWidth = Math.min(subImageSize, width - (i % columns) * subImageSize);
+            int coveredHeight = Math.min(subImageSize, height - (i / columns) * subImageSize);
+            sums[i] += white * ((long) subImageSize * subImageSize - (long) coveredWidth * coveredHeight);
+        }
+    }
+
+    /*
+     * Returns a reader of the image in the stream.
+     */
+    private static ImageReader getReader(ImageInputStream input, String name) throws IOException {
+        if (input == null) {
+            throw new IOException("Cannot open " + name);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + name);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+}
@@ -21,27 +21,72 @@ public class CharConverter {
      * Renders a given character, according to how it looks in the font specified in the
      * constructor, to a square black&white image (2D array of booleans),
      * whose dimension in pixels is specified.
+     * The printable ASCII characters are served from a glyph atlas rendered once.
      */
     public static boolean[][] convertToBoolArray(char c) {
-        BufferedImage img = getBufferedImage(c, FONT_NAME, DEFAULT_PIXEL_RESOLUTION);
-        boolean[][] matrix = new boolean[DEFAULT_PIXEL_RESOLUTION][DEFAULT_PIXEL_RESOLUTION];
-        for(int y = 0 ; y < DEFAULT_PIXEL_RESOLUTION ; y++) {
-            for(int x = 0 ; x < DEFAULT_PIXEL_RESOLUTION ; x++) {
-                matrix[y][x] = img.getRGB(x, y) == 0; //is the color black
-            }
+        boolean[][] glyph = GlyphAtlas.getAtlas(FONT_NAME, DEFAULT_PIXEL_RESOLUTION).getGlyph(c);
+        boolean[][] matrix = new boolean[DEFAULT_PIXEL_RESOLUTION][];
+        for (int y = 0 ; y < DEFAULT_PIXEL_RESOLUTION ; y++) {
+            matrix[y] = glyph[y].clone();
         }
         return matrix;
     }
 
-    private static BufferedImage getBufferedImage(char c, String fontName, int pixelsPerRow) {
-        String charStr = Character.toString(c);
+    /**
+     * Counts the white (true) pixels of the boolean image of a given character, without copying it.
+     * The counts of the printable ASCII characters come from the on-disk glyph cache when it is valid, so
+     * the font is not rasterized at all.
+     */
+    public static int countWhitePixels(char c) {
+        if (c >= GlyphAtlas.FIRST_ATLAS_CHAR && c <= GlyphAtlas.LAST_ATLAS_CHAR) {
+            return GlyphCache.getWhitePixelCounts(FONT_NAME, DEFAULT_PIXEL_RESOLUTION)
+                    [c - GlyphAtlas.FIRST_ATLAS_CHAR];
+        }
+        return GlyphAtlas.getAtlas(FONT_NAME, DEFAULT_PIXEL_RESOLUTION).getWhitePixelCount(c);
+    }
+
+    /**
+     * Returns the shape of a given character as a 64-bit mask of 8x8 cells, where bit (row * 8 + col) is
+     * set if the cell is mostly white. The masks of the printable ASCII characters are computed once,
+     * together with the glyph atlas.
+     */
+    public static long getShapeMask(char c) {
+        return GlyphAtlas.getAtlas(FONT_NAME, DEFAULT_PIXEL_RESOLUTION).getShapeMask(c);
+    }
+
+    /**
+     * Renders the given characters side by side into a single image, each one clipped to its own square
+     * cell, and slices the black&white image of every character out of it.
+     */
+    static boolean[][][] convertToBoolArrays(char[] chars, String fontName, int pixelsPerRow) {
+        BufferedImage img = getBufferedImage(chars, fontName, pixelsPerRow);
+        int imgWidth = chars.length * pixelsPerRow;
+        int[] pixels = img.getRGB(0, 0, imgWidth, pixelsPerRow, null, 0, imgWidth);
+        boolean[][][] matrices = new boolean[chars.length][pixelsPerRow][pixelsPerRow];
+        for (int i = 0 ; i < chars.length ; i++) {
+            for(int y = 0 ; y < pixelsPerRow ; y++) {
+                for(int x = 0 ; x < pixelsPerRow ; x++) {
+                    matrices[i][y][x] = pixels[y * imgWidth + i * pixelsPerRow + x] == 0; //is the color black
+                }
+            }
+        }
+        return matrices;
+    }
+
+    private static BufferedImage getBufferedImage(char[] chars, String fontName, int pixelsPerRow) {
         Font font = new Font(fontName, Font.PLAIN, pixelsPerRow);
-        BufferedImage img = new BufferedImage(pixelsPerRow, pixelsPerRow, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage img = new BufferedImage(chars.length * pixelsPerRow, pixelsPerRow,
+                BufferedImage.TYPE_INT_ARGB);
         Graphics g = img.getGraphics();
         g.setFont(font);
         int xOffset = (int)Math.round(pixelsPerRow *X_OFFSET_FACTOR);
         int yOffset = (int)Math.round(pixelsPerRow *Y_OFFSET_FACTOR);
-        g.drawString(charStr, xOffset, yOffset);
+        for (int i = 0 ; i < chars.length ; i++) {
+            int cellX = i * pixelsPerRow;
+            g.setClip(cellX, 0, pixelsPerRow, pixelsPerRow);
+            g.drawString(Character.toString(chars[i]), cellX + xOffset, yOffset);
+        }
+        g.dispose();
         return img;
     }
 
@@ -0,0 +1,149 @@
+package image_char_matching;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the black&white images of the characters of one font in one pixel resolution. All the printable
+ * ASCII characters are rasterized together in a single image the first time the atlas is used, and any
+ * other character is rendered on its first request.
+ *
+ * @author Asaf Korman
+ */
+class GlyphAtlas {
+
+    static final char FIRST_ATLAS_CHAR = ' ';
+    static final char LAST_ATLAS_CHAR = '~';
+    // The side of the shape mask of a glyph, in cells.
+    static final int SHAPE_SIDE = 8;
+    private static final Map<String, GlyphAtlas> ATLASES = new ConcurrentHashMap<>();
+
+    private final String fontName;
+    private final int pixelsPerRow;
+    private final boolean[][][] atlasGlyphs;
+    private final int[] atlasWhitePixels;
+    private final long[] atlasShapeMasks;
+    private final Map<Character, boolean[][]> otherGlyphs;
+
+    /*
+     * Rasterizes all the printable ASCII characters.
+     */
+    private GlyphAtlas(String fontName, int pixelsPerRow) {
+        this.fontName = fontName;
+        this.pixelsPerRow = pixelsPerRow;
+        char[] chars = new char[LAST_ATLAS_CHAR - FIRST_ATLAS_CHAR + 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (FIRST_ATLAS_CHAR + i);
+        }
+        this.atlasGlyphs = CharConverter.convertToBoolArrays(chars, fontName, pixelsPerRow);
+        this.atlasWhitePixels = new int[chars.length];
+        this.atlasShapeMasks = new long[chars.length];
+        for (int i = 0; i < chars.length; i++) {
+            atlasWhitePixels[i] = countWhitePixels(atlasGlyphs[i]);
+            atlasShapeMasks[i] = shapeMask(atlasGlyphs[i]);
+        }
+        this.otherGlyphs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the atlas of the given font and pixel resolution, rendering it on the first call.
+     *
+     * @param fontName The name of the font.
+     * @param pixelsPerRow The pixel resolution of every character.
+     * @return The glyph atlas.
+     */
+    static GlyphAtlas getAtlas(String fontName, int pixelsPerRow) {
+        return ATLASES.computeIfAbsent(fontName + ":" + pixelsPerRow,
+                key -> new GlyphAtlas(fontName, pixelsPerRow));
+    }
+
+    /**
+     * Returns the cached black&white image of a character. Must not be modified.
+     *
+     * @param c The character.
+     * @return The image of the character, true where it is white.
+     */
+    boolean[][] getGlyph(char c) {
+        if (c >= FIRST_ATLAS_CHAR && c <= LAST_ATLAS_CHAR) {
+            return atlasGlyphs[c - FIRST_ATLAS_CHAR];
+        }
+        return otherGlyphs.computeIfAbsent(c,
+                key -> CharConverter.convertToBoolArrays(new char[]{c}, fontName, pixelsPerRow)[0]);
+    }
+
+    /**
+     * Returns the number of white pixels in the image of a character.
+     *
+     * @param c The character.
+     * @return The number of white pixels.
+     */
+    int getWhitePixelCount(char c) {
+        if (c >= FIRST_ATLAS_CHAR && c <= LAST_ATLAS_CHAR) {
+            return atlasWhitePixels[c - FIRST_ATLAS_CHAR];
+        }
+        return countWhitePixels(getGlyph(c));
+    }
+
+    /**
+     * Returns the shape mask of a character: its image reduced to SHAPE_SIDE x SHAPE_SIDE cells, where bit
+     * (row * SHAPE_SIDE + col) is set if at least half of the pixels of the cell are white.
+     *
+     * @param c The character.
+     * @return The shape mask.
+     */
+    long getShapeMask(char c) {
+        if (c >= FIRST_ATLAS_CHAR && c <= LAST_ATLAS_CHAR) {
+            return atlasShapeMasks[c - FIRST_ATLAS_CHAR];
+        }
+        return shapeMask(getGlyph(c));
+    }
+
+    /**
+     * Returns the number of white pixels of every character in the atlas, from FIRST_ATLAS_CHAR to
+     * LAST_ATLAS_CHAR.
+     *
+     * @return A copy of the white pixel counts.
+     */
+    int[] getAtlasWhitePixelCounts() {
+        return atlasWhitePixels.clone();
+    }
+
+    /*
+     * Reduces a glyph to its shape mask. The pixel resolution is assumed to be a multiple of SHAPE_SIDE.
+     */
+    private static long shapeMask(boolean[][] glyph) {
+        int cellSize = glyph.length / SHAPE_SIDE;
+        long mask = 0;
+        for (int row = 0; row < SHAPE_SIDE; row++) {
+            for (int col = 0; col < SHAPE_SIDE; col++) {
+                int whitePixels = 0;
+                for (int y = row * cellSize; y < (row + 1) * cellSize; y++) {
+                    for (int x = col * cellSize; x < (col + 1) * cellSize; x++) {
+                        if (glyph[y][x]) {
+                            whitePixels++;
+                        }
+                    }
+                }
+                if (2 * whitePixels >= cellSize * cellSize) {
+                    mask |= 1L << (row * SHAPE_SIDE + col);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /*
+     * Counts the true values of a glyph.
+     */
+    private static int countWhitePixels(boolean[][] glyph) {
+        int whitePixels = 0;
+        for (boolean[] row : glyph) {
+            for (boolean pixel : row) {
+                if (pixel) {
+                    whitePixels++;
+                }
+            }
+        }
+        return whitePixels;
+    }
+}
@@ -0,0 +1,211 @@
+package image_char_matching;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the white pixel counts of the printable ASCII characters in a small binary file, so that a warm
+ * start does not need to initialize the font stack and rasterize the glyphs. Each file is keyed by the font
+ * name and pixel resolution, and stores a fingerprint of the JDK and of every file in the font and fontconfig
+ * directories it was created with. A missing, corrupted or stale file is ignored and rewritten from the glyph
+ * atlas.
+ *
+ * @author Asaf Korman
+ */
+class GlyphCache {
+
+    private static final int MAGIC = 0x47434143; // "GCAC"
+    private static final int VERSION = 1;
+    private static final String CACHE_DIR_PROPERTY = "ascii_art.glyph_cache_dir";
+    private static final String CACHE_DIR_NAME = "ascii_art_glyphs";
+    private static final String FILE_FORMAT = "%s-%d.bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String FINGERPRINT_SEPARATOR = "|";
+    private static final String[] JDK_PROPERTIES = {"java.vendor", "java.runtime.version", "os.name",
+            "os.version", "os.arch"};
+    // Where the JDK, the operating systems and the users keep fonts and their configuration; a change
+    // anywhere in them may change the glyphs. The relative ones are in the JDK and in the home directory.
+    private static final String[] FONT_DIRS = {"lib/fonts", "/usr/share/fonts", "/usr/local/share/fonts",
+            "/etc/fonts", "/System/Library/Fonts", "/Library/Fonts", "C:\\Windows\\Fonts"};
+    private static final String[] USER_FONT_DIRS = {".fonts", ".local/share/fonts", ".config/fontconfig",
+            "Library/Fonts"};
+    private static final Map<String, int[]> LOADED_COUNTS = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the white pixel counts of the printable ASCII characters, from FIRST_ATLAS_CHAR to
+     * LAST_ATLAS_CHAR. Reads them from the cache file, or rasterizes them and writes the file if it is not
+     * valid.
+     *
+     * @param fontName The name of the font.
+     * @param pixelsPerRow The pixel resolution of every character.
+     * @return The white pixel counts. Must not be modified.
+     */
+    static int[] getWhitePixelCounts(String fontName, int pixelsPerRow) {
+        return LOADED_COUNTS.computeIfAbsent(fontName + ":" + pixelsPerRow,
+                key -> loadWhitePixelCounts(fontName, pixelsPerRow));
+    }
+
+    /*
+     * Reads the counts from the cache file, falling back to the glyph atlas.
+     */
+    private static int[] loadWhitePixelCounts(String fontName, int pixelsPerRow) {
+        Path cacheFile = getCacheFile(fontName, pixelsPerRow);
+        String fingerprint = getFingerprint();
+        int[] counts = readCacheFile(cacheFile, fontName, pixelsPerRow, fingerprint);
+        if (counts == null) {
+            counts = GlyphAtlas.getAtlas(fontName, pixelsPerRow).getAtlasWhitePixelCounts();
+            writeCacheFile(cacheFile, fontName, pixelsPerRow, fingerprint, counts);
+        }
+        return counts;
+    }
+
+    /*
+     * Returns the counts stored in the file, or null if the file is missing or does not match the key.
+     */
+    private static int[] readCacheFile(Path cacheFile, String fontName, int pixelsPerRow,
+                                       String fingerprint) {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(cacheFile))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(fontName) ||
+                    in.readInt() != pixelsPerRow || !in.readUTF().equals(fingerprint) ||
+                    in.readChar() != GlyphAtlas.FIRST_ATLAS_CHAR ||
+                    in.readChar() != GlyphAtlas.LAST_ATLAS_CHAR) {
+                return null;
+            }
+            int[] counts = new int[GlyphAtlas.LAST_ATLAS_CHAR - GlyphAtlas.FIRST_ATLAS_CHAR + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = in.readInt();
+                if (counts[i] < 0 || counts[i] > pixelsPerRow * pixelsPerRow) {
+                    return null;
+                }
+            }
+            return counts;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Writes the counts through a temporary file, so a concurrent reader never sees a partial file. The cache
+     * is an optimization only, so failing to write it is ignored.
+     */
+    private static void writeCacheFile(Path cacheFile, String fontName, int pixelsPerRow, String fingerprint,
+                                       int[] counts) {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            Path tempFile = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(),
+                    TEMP_SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fontName);
+                out.writeInt(pixelsPerRow);
+                out.writeUTF(fingerprint);
+                out.writeChar(GlyphAtlas.FIRST_ATLAS_CHAR);
+                out.writeChar(GlyphAtlas.LAST_ATLAS_CHAR);
+                for (int count : counts) {
+                    out.writeInt(count);
+                }
+            }
+            try {
+                Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException | SecurityException e) {
+            // Next start will rasterize the glyphs again.
+        }
+    }
+
+    /*
+     * Returns the path of the cache file of the given font and resolution.
+     */
+    private static Path getCacheFile(String fontName, int pixelsPerRow) {
+        String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (cacheDir == null) {
+            cacheDir = Paths.get(System.getProperty("java.io.tmpdir"), CACHE_DIR_NAME).toString();
+        }
+        String safeFontName = fontName.replaceAll("[^A-Za-z0-9]", "_");
+        return Paths.get(cacheDir, String.format(FILE_FORMAT, safeFontName, pixelsPerRow));
+    }
+
+    /*
+     * Describes the JDK and the fonts without touching AWT: the JDK version and platform, and the files of
+     * every font directory that exists. A font added, replaced or removed in any subdirectory, or a change
+     * of the fontconfig rules, changes the fingerprint.
+     */
+    private static String getFingerprint() {
+        StringBuilder fingerprint = new StringBuilder();
+        for (String property : JDK_PROPERTIES) {
+            fingerprint.append(System.getProperty(property)).append(FINGERPRINT_SEPARATOR);
+        }
+        for (String fontDir : FONT_DIRS) {
+            File dir = new File(fontDir);
+            appendDirFingerprint(fingerprint, dir.isAbsolute() ? dir :
+                    new File(System.getProperty("java.home"), fontDir));
+        }
+        for (String fontDir : USER_FONT_DIRS) {
+            appendDirFingerprint(fingerprint, new File(System.getProperty("user.home"), fontDir));
+        }
+        return fingerprint.toString();
+    }
+
+    /*
+     * Appends the number of entries, their total size and the latest modification time of the directory and
+     * everything under it, following links. Entries that cannot be read are skipped.
+     */
+    private static void appendDirFingerprint(StringBuilder fingerprint, File dir) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        // The number of entries, their total size and the latest modification time.
+        long[] tree = new long[3];
+        try {
+            Files.walkFileTree(dir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                            add(attributes);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                            add(attributes);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path path, IOException e) {
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        private void add(BasicFileAttributes attributes) {
+                            tree[0]++;
+                            tree[1] += attributes.size();
+                            tree[2] = Math.max(tree[2], attributes.lastModifiedTime().toMillis());
+                        }
+                    });
+        } catch (IOException | SecurityException e) {
+            // The entries read so far still describe the directory.
+        }
+        fingerprint.append(dir.getPath()).append('@').append(tree[0]).append(',').append(tree[1]).append(',')
+                .append(tree[2]).append(FINGERPRINT_SEPARATOR);
+    }
+}
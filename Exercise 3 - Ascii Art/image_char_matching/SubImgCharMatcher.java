@@ -1,21 +1,130 @@
 package image_char_matching;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Set;
 
 /**
  * Responsible for matching an ASCII character to a sub image with a given brightness.
+ * Several threads may match characters at the same time, as long as the character set does not change
+ * meanwhile.
  *
  * @author Asaf Korman
  */
 public class SubImgCharMatcher {
 
     private static final int CHAR_RESOLUTION = 16;
+    private static final int LOOKUP_BUCKETS = 4096;
+    private static final double HALF_BUCKET = 0.5;
+    private static final char EXACT_FINGERPRINT = 'e';
+    private static final char QUANTIZED_FINGERPRINT = 'q';
+    private static final char SHAPE_FINGERPRINT = 's';
+    private static final int ASCII_SIZE = 128;
+    // The shape of a sub image without any contrast.
+    private static final long FLAT_SHAPE = 0;
+    // The raw (not normalized) brightness value of every character in the set.
     private final HashMap<Character, Double> charBrightness;
 
     private double minBrightness;
     private double maxBrightness;
+    // True when a character with the min/max brightness was removed and they have to be searched again.
+    private boolean minMaxStale;
+    // Sorted and normalized view of charBrightness used for matching; null when it has to be rebuilt.
+    private volatile BrightnessSnapshot snapshot;
+    // Identifies the character set and matching mode; null when it has to be rebuilt.
+    private String fingerprint;
+    private boolean quantized;
+    private boolean shapeMatching;
+
+    /*
+     * The normalized brightness values of the character set sorted in ascending order, and the character of
+     * each value. When several characters share a brightness value only the lowest of them is kept.
+     */
+    private static class BrightnessSnapshot {
+
+        private final double[] brightness;
+        private final char[] chars;
+        // The normalized brightness value of every ASCII character of the set, by character; NaN for the
+        // characters not in the set.
+        private final double[] asciiBrightness;
+        // The closest character to the center of each brightness bucket; null when not in quantized mode.
+        private char[] lookupTable;
+        // Every character of the set sorted like the brightness values, with its shape mask and normalized
+        // brightness; null when not in shape matching mode.
+        private char[] shapeChars;
+        private long[] shapeMasks;
+        private double[] shapeBrightness;
+
+        BrightnessSnapshot(double[] brightness, char[] chars, double[] asciiBrightness) {
+            this.brightness = brightness;
+            this.chars = chars;
+            this.asciiBrightness = asciiBrightness;
+        }
+
+        /*
+         * Returns the character with the closest brightness value, the lowest one on equal distance.
+         */
+        char closestChar(double value) {
+            if (brightness.length == 0) {
+                return 0; // 0 is null in the ASCII table.
+            }
+            // The closest value is either the first value that is not smaller than the given one or the one
+            // right before it.
+            int index = Arrays.binarySearch(brightness, value);
+            if (index >= 0) {
+                return chars[index];
+            }
+            int above = -index - 1;
+            if (above == 0) {
+                return chars[0];
+            } else if (above == brightness.length) {
+                return chars[brightness.length - 1];
+            }
+            double aboveDistance = Math.abs(value - brightness[above]);
+            double belowDistance = Math.abs(value - brightness[above - 1]);
+            if (aboveDistance < belowDistance) {
+                return chars[above];
+            } else if (belowDistance < aboveDistance) {
+                return chars[above - 1];
+            }
+            return (char) Math.min(chars[above], chars[above - 1]);
+        }
+
+        /*
+         * Returns the character whose shape mask differs from the given one in the fewest cells. Among
+         * equally close shapes the one with the closest brightness wins, and then the lowest character.
+         */
+        char closestShape(long mask, double value) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            double bestBrightnessDistance = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < shapeMasks.length; i++) {
+                int distance = Long.bitCount(mask ^ shapeMasks[i]);
+                if (distance > bestDistance) {
+                    continue;
+                }
+                double brightnessDistance = Math.abs(value - shapeBrightness[i]);
+                if (distance < bestDistance || brightnessDistance < bestBrightnessDistance ||
+                        brightnessDistance == bestBrightnessDistance && shapeChars[i] < shapeChars[best]) {
+                    best = i;
+                    bestDistance = distance;
+                    bestBrightnessDistance = brightnessDistance;
+                }
+            }
+            return shapeChars[best];
+        }
+
+        /*
+         * Fills the lookup table with the closest character to the center of every bucket.
+         */
+        void buildLookupTable() {
+            lookupTable = new char[LOOKUP_BUCKETS];
+            for (int bucket = 0; bucket < LOOKUP_BUCKETS; bucket++) {
+                lookupTable[bucket] = closestChar((bucket + HALF_BUCKET) / LOOKUP_BUCKETS);
+            }
+        }
+    }
 
     /**
      * Constructor. Creates the data structure that holds the set of characters and their brightness values.
@@ -24,24 +133,21 @@ public class SubImgCharMatcher {
      */
     public SubImgCharMatcher(char[] charset) {
         this.charBrightness = new HashMap<>();
-        for (char c : charset) {
-            charBrightness.put(c, brightnessValue(c));
-        }
-        this.minBrightness = Collections.min(charBrightness.values());
-        this.maxBrightness = Collections.max(charBrightness.values());
-        normalizeBrightnessValues();
+        this.minBrightness = Double.POSITIVE_INFINITY;
+        this.maxBrightness = Double.NEGATIVE_INFINITY;
+        addChars(charset);
     }
 
     /*
-     * Normalizes the brightness values of all characters in the set by linear stretching of the min/max values.
+     * Normalizes a raw brightness value by linear stretching of the min/max values.
      * This is in order to prevent a situation where in an image with similar shades we will get the same
      * character for every pixel.
      */
-    private void normalizeBrightnessValues() {
-        for (char c : charBrightness.keySet()) {
-            double newBrightness = (charBrightness.get(c) - minBrightness) / (maxBrightness - minBrightness);
-            charBrightness.put(c, newBrightness);
+    private double normalizeBrightnessValue(double brightness) {
+        if (maxBrightness == minBrightness) {
+            return 0;
         }
+        return (brightness - minBrightness) / (maxBrightness - minBrightness);
     }
 
     /**
@@ -53,88 +159,381 @@ public class SubImgCharMatcher {
      * @return The character with the closest brightness value.
      */
     public char getCharByImageBrightness(double brightness) {
-        char closestChar = 0; // 0 is null in the ASCII table.
-        double closestBrightness = 1; // 1 is the biggest distance that could be.
-        for (char c : charBrightness.keySet()) {
-            double currDistance = Math.abs(brightness - charBrightness.get(c));
-            if (currDistance < closestBrightness) {
-                closestChar = c;
-                closestBrightness = currDistance;
-            } else if (currDistance == closestBrightness) {
-                closestChar = (char) Math.min(c, closestChar);
+        BrightnessSnapshot currSnapshot = getSnapshot();
+        char[] lookupTable = currSnapshot.lookupTable;
+        if (lookupTable != null) {
+            int bucket = (int) (brightness * LOOKUP_BUCKETS);
+            return lookupTable[Math.max(0, Math.min(LOOKUP_BUCKETS - 1, bucket))];
+        }
+        return currSnapshot.closestChar(brightness);
+    }
+
+    /**
+     * Returns the normalized brightness value of a character of the set: the value sub image brightness is
+     * compared to when matching.
+     *
+     * @param c A character of the set.
+     * @return The normalized brightness value of the character.
+     * @throws IllegalArgumentException If the character is not in the set.
+     */
+    public double getCharBrightness(char c) {
+        BrightnessSnapshot currSnapshot = getSnapshot();
+        if (c < ASCII_SIZE && !Double.isNaN(currSnapshot.asciiBrightness[c])) {
+            return currSnapshot.asciiBrightness[c];
+        }
+        Double brightness = charBrightness.get(c);
+        if (brightness == null) {
+            throw new IllegalArgumentException("Character is not in the set: " + c);
+        }
+        return normalizeBrightnessValue(brightness);
+    }
+
+    /**
+     * Getter.
+     *
+     * @return The number of distinct brightness values of the characters of the set.
+     */
+    public int getBrightnessLevels() {
+        return getSnapshot().brightness.length;
+    }
+
+    /**
+     * Given the shape and the brightness of a sub image, the method will return the character (from the
+     * character set) whose shape is the closest to the shape of the sub image, counting the cells in which
+     * the shape masks differ. Among equally close shapes the character with the closest brightness is chosen.
+     * A sub image without any contrast (an empty shape) is matched by its brightness only, like in
+     * getCharByImageBrightness, and so is any sub image when shape matching is off.
+     *
+     * @param shape The shape mask of the sub image: 8x8 cells, where bit (row * 8 + col) is set if the cell
+     *              is brighter than the sub image.
+     * @param brightness The sub image brightness value.
+     * @return The character with the closest shape.
+     */
+    public char getCharByShape(long shape, double brightness) {
+        BrightnessSnapshot currSnapshot = getSnapshot();
+        if (shape == FLAT_SHAPE || currSnapshot.shapeMasks == null || currSnapshot.shapeMasks.length == 0) {
+            return getCharByImageBrightness(brightness);
+        }
+        return currSnapshot.closestShape(shape, brightness);
+    }
+
+    /**
+     * Switches shape matching on or off. In shape matching mode every character of the set is reduced to an
+     * 8x8 mask of its mostly white cells once per change of the character set, and a match compares the mask
+     * of a sub image to every one of them with a XOR and a bit count.
+     *
+     * @param shapeMatching true to match by shape, false to match by brightness only.
+     */
+    public void setShapeMatching(boolean shapeMatching) {
+        if (this.shapeMatching != shapeMatching) {
+            this.shapeMatching = shapeMatching;
+            invalidate();
+        }
+    }
+
+    /**
+     * Getter.
+     *
+     * @return true if the matcher matches by shape.
+     */
+    public boolean isShapeMatching() {
+        return shapeMatching;
+    }
+
+    /**
+     * Switches between exact matching and quantized matching. In quantized mode the range [0,1] is divided
+     * into 4096 equal buckets, and every brightness in a bucket is matched to the closest character to the
+     * center of the bucket. The table is built once per change of the character set, and a match is a single
+     * array access.
+     * The character chosen in quantized mode may differ from the exact one only when the brightness is
+     * within 1/8192 of the midpoint between the brightness values of two characters, and its brightness is
+     * never more than 1/4096 farther from the sub image brightness than the exact character's brightness.
+     *
+     * @param quantized true to use the lookup table, false to search the exact closest character.
+     */
+    public void setQuantized(boolean quantized) {
+        if (this.quantized != quantized) {
+            this.quantized = quantized;
+            invalidate();
+        }
+    }
+
+    /**
+     * Getter.
+     *
+     * @return true if the matcher uses the quantized lookup table.
+     */
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * Returns a string that identifies the character set and the matching mode, so two matchers (or the
+     * same matcher at two points in time) with equal fingerprints match every brightness to the same
+     * character.
+     *
+     * @return The fingerprint of the matcher.
+     */
+    public String getFingerprint() {
+        if (fingerprint == null) {
+            char[] chars = new char[charBrightness.size()];
+            int i = 0;
+            for (char c : charBrightness.keySet()) {
+                chars[i++] = c;
+            }
+            Arrays.sort(chars);
+            fingerprint = (shapeMatching ? String.valueOf(SHAPE_FINGERPRINT) : "") +
+                    (quantized ? QUANTIZED_FINGERPRINT : EXACT_FINGERPRINT) + new String(chars);
+        }
+        return fingerprint;
+    }
+
+    /*
+     * Drops the sorted snapshot and the fingerprint after a change of the character set or matching mode.
+     */
+    private void invalidate() {
+        snapshot = null;
+        fingerprint = null;
+    }
+
+    /*
+     * Returns the sorted snapshot of the character set, rebuilding it if the set changed since it was built.
+     * Threads that match concurrently while the set does not change share a single rebuild.
+     */
+    private BrightnessSnapshot getSnapshot() {
+        BrightnessSnapshot currSnapshot = snapshot;
+        if (currSnapshot == null) {
+            synchronized (this) {
+                currSnapshot = snapshot;
+                if (currSnapshot == null) {
+                    currSnapshot = buildSnapshot();
+                    snapshot = currSnapshot;
+                }
+            }
+        }
+        return currSnapshot;
+    }
+
+    /*
+     * Sorts the characters by their brightness value, and by their ASCII value for equal brightness, and
+     * normalizes the values. This is the only place the values are normalized, so a change of the min/max
+     * brightness costs a single linear pass over the set, whatever the number of changes before it.
+     */
+    private BrightnessSnapshot buildSnapshot() {
+        if (minMaxStale) {
+            minBrightness = Double.POSITIVE_INFINITY;
+            maxBrightness = Double.NEGATIVE_INFINITY;
+            for (double brightness : charBrightness.values()) {
+                minBrightness = Math.min(minBrightness, brightness);
+                maxBrightness = Math.max(maxBrightness, brightness);
+            }
+            minMaxStale = false;
+        }
+        Character[] sortedChars = charBrightness.keySet().toArray(new Character[0]);
+        Arrays.sort(sortedChars, (first, second) -> {
+            int compare = Double.compare(charBrightness.get(first), charBrightness.get(second));
+            return compare != 0 ? compare : Character.compare(first, second);
+        });
+        double[] values = new double[sortedChars.length];
+        char[] chars = new char[sortedChars.length];
+        int size = 0;
+        double[] asciiBrightness = new double[ASCII_SIZE];
+        Arrays.fill(asciiBrightness, Double.NaN);
+        for (Character c : sortedChars) {
+            double value = normalizeBrightnessValue(charBrightness.get(c));
+            if (c < ASCII_SIZE) {
+                asciiBrightness[c] = value;
+            }
+            if (size > 0 && values[size - 1] == value) {
+                continue;
             }
+            values[size] = value;
+            chars[size] = c;
+            size++;
         }
-        return closestChar;
+        BrightnessSnapshot newSnapshot = new BrightnessSnapshot(Arrays.copyOf(values, size),
+                Arrays.copyOf(chars, size), asciiBrightness);
+        if (quantized) {
+            newSnapshot.buildLookupTable();
+        }
+        if (shapeMatching) {
+            newSnapshot.shapeChars = new char[sortedChars.length];
+            newSnapshot.shapeMasks = new long[sortedChars.length];
+            newSnapshot.shapeBrightness = new double[sortedChars.length];
+            for (int i = 0; i < sortedChars.length; i++) {
+                char c = sortedChars[i];
+                newSnapshot.shapeChars[i] = c;
+                newSnapshot.shapeMasks[i] = CharConverter.getShapeMask(c);
+                newSnapshot.shapeBrightness[i] = normalizeBrightnessValue(charBrightness.get(c));
+            }
+        }
+        return newSnapshot;
     }
 
     /**
      * Adds new character to the set of characters.
-     * Takes care to calculate the brightness and normalize (if necessary)  with the insert.
+     * Takes care to calculate the brightness with the insert; the normalization is done lazily on the next
+     * match, so adding a character takes constant time.
      *
      * @param c The character to be added.
      */
     public void addChar(char c) {
-        double brightness = brightnessValue(c);
-        if (brightness > maxBrightness) {
-            maxBrightness = brightness;
-            charBrightness.put(c, brightness);
-            normalizeBrightnessValues();
-        } else if (brightness < minBrightness) {
-            minBrightness = brightness;
-            charBrightness.put(c, brightness);
-            normalizeBrightnessValues();
-        } else {
-            // Normalizes according to the min/max brightness values in charBrightness.
-            double newBrightness = (brightness - minBrightness) / (maxBrightness - minBrightness);
-            charBrightness.put(c, newBrightness);
+        if (putChar(c)) {
+            invalidate();
         }
     }
 
+    /**
+     * Adds all the characters in the range [first, last] to the set of characters.
+     *
+     * @param first The first character of the range.
+     * @param last The last character of the range.
+     */
+    public void addChars(char first, char last) {
+        validateRange(first, last);
+        boolean changed = false;
+        for (char c = first; c <= last && c >= first; c++) {
+            changed |= putChar(c);
+        }
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Adds all the given characters to the set of characters.
+     *
+     * @param chars The characters to be added.
+     */
+    public void addChars(char[] chars) {
+        boolean changed = false;
+        for (char c : chars) {
+            changed |= putChar(c);
+        }
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    /*
+     * Puts a character and its raw brightness in the set, and updates the min/max brightness. Returns true
+     * if the character was not in the set.
+     */
+    private boolean putChar(char c) {
+        if (charBrightness.containsKey(c)) {
+            return false;
+        }
+        double brightness = brightnessValue(c);
+        charBrightness.put(c, brightness);
+        minBrightness = Math.min(minBrightness, brightness);
+        maxBrightness = Math.max(maxBrightness, brightness);
+        return true;
+    }
+
     /*
      * Calculate the brightness value of a given character.
      */
     private double brightnessValue(char c) {
-        double whitePixelsCounter = 0;
-        boolean[][] pixels = CharConverter.convertToBoolArray(c);
-        for (int row = 0 ; row < CHAR_RESOLUTION ; row++) {
-            for (int col = 0 ; col < CHAR_RESOLUTION ; col++) {
-                if (pixels[row][col]) {
-                    whitePixelsCounter += 1;
-                }
-            }
-        }
+        double whitePixelsCounter = CharConverter.countWhitePixels(c);
         // Normalize to get brightness value in [0,1].
         return whitePixelsCounter / (CHAR_RESOLUTION * CHAR_RESOLUTION);
     }
 
     /**
      * Removes tha given character from the set.
+     * Takes constant time; if the character had the min/max brightness they are searched again lazily.
      *
      * @param c The character to be removed.
      */
     public void removeChar(char c) {
-        if (charBrightness.get(c) == null) {
-            return;
-        }
-        double removedCharBrightness = charBrightness.remove(c);
-        if (charBrightness.size() > 1) {
-            // Update min/max brightness values and normalize if necessary.
-            if (minBrightness == removedCharBrightness) {
-                minBrightness = Collections.min(charBrightness.values());
-                normalizeBrightnessValues();
-            } else if (maxBrightness == removedCharBrightness) {
-                maxBrightness = Collections.max(charBrightness.values());
-                normalizeBrightnessValues();
-            }
+        if (deleteChar(c)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Removes all the characters in the range [first, last] from the set.
+     *
+     * @param first The first character of the range.
+     * @param last The last character of the range.
+     */
+    public void removeChars(char first, char last) {
+        validateRange(first, last);
+        boolean changed = false;
+        for (char c = first; c <= last && c >= first; c++) {
+            changed |= deleteChar(c);
+        }
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Removes all the given characters from the set.
+     *
+     * @param chars The characters to be removed.
+     */
+    public void removeChars(char[] chars) {
+        boolean changed = false;
+        for (char c : chars) {
+            changed |= deleteChar(c);
+        }
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Replaces the character set with the given characters.
+     *
+     * @param chars The new character set.
+     */
+    public void setCharSet(char[] chars) {
+        clear();
+        addChars(chars);
+    }
+
+    /**
+     * Removes all the characters from the set.
+     */
+    public void clear() {
+        charBrightness.clear();
+        minBrightness = Double.POSITIVE_INFINITY;
+        maxBrightness = Double.NEGATIVE_INFINITY;
+        minMaxStale = false;
+        invalidate();
+    }
+
+    /*
+     * Removes a character from the set, and marks the min/max brightness as stale if it had one of them.
+     * Returns true if the character was in the set.
+     */
+    private boolean deleteChar(char c) {
+        Double removedCharBrightness = charBrightness.remove(c);
+        if (removedCharBrightness == null) {
+            return false;
+        }
+        if (removedCharBrightness == minBrightness || removedCharBrightness == maxBrightness) {
+            minMaxStale = true;
+        }
+        return true;
+    }
+
+    /*
+     * Throws if the range is empty.
+     */
+    private static void validateRange(char first, char last) {
+        if (first > last) {
+            throw new IllegalArgumentException("Invalid character range: " + first + "-" + last);
         }
     }
 
     /**
      * Getter.
      *
-     * @return The character set.
+     * @return An unmodifiable view of the character set.
      */
     public Set<Character> getCharSet() {
-        return charBrightness.keySet();
+        return Collections.unmodifiableSet(charBrightness.keySet());
     }
 }